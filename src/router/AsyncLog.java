@@ -0,0 +1,158 @@
+/**
+ * Redes Integradas de Telecomunicacoes I MIEEC 2014/2015
+ *
+ * AsyncLog.java
+ *
+ * Level-gated logging, written by a background thread
+ */
+package router;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Level-gated logging. Callers test on(level) before formatting a message,
+ * so a disabled level costs one field read. Enabled messages are queued in
+ * a bounded lock-free queue and written by one background thread; when the
+ * queue is full the message is dropped and counted.
+ */
+public class AsyncLog extends Thread {
+
+    /** Log levels */
+    public final static int ERROR = 0;
+    public final static int INFO = 1;
+    public final static int DEBUG = 2;
+    public final static int TRACE = 3;
+    /** Level names, indexed by level */
+    public final static String[] LEVEL_NAMES = {"ERROR", "INFO", "DEBUG", "TRACE"};
+    /** Default queue capacity */
+    public final static int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Destination of the log messages; only called by the writer thread
+     */
+    public interface Sink {
+
+        /**
+         * Write a group of messages
+         *
+         * @param s the messages, concatenated
+         */
+        void write(String s);
+    }
+
+    /** Current level; messages above it are discarded */
+    private volatile int level;
+    private final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>();
+    /** Number of queued messages, bounds the queue */
+    private final AtomicInteger queued = new AtomicInteger();
+    private final int capacity;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Sink sink;
+    private volatile boolean keepRunning = true;
+
+    /**
+     * Constructor; the owner starts the writer thread
+     *
+     * @param level initial level
+     * @param capacity maximum number of queued messages
+     * @param sink destination of the messages
+     */
+    public AsyncLog(int level, int capacity, Sink sink) {
+        super("Log writer");
+        setDaemon(true);
+        this.level = level;
+        this.capacity = capacity;
+        this.sink = sink;
+    }
+
+    /**
+     * Test if a level is enabled; call it before formatting the message
+     *
+     * @param lvl level
+     * @return true if messages of this level are written
+     */
+    public boolean on(int lvl) {
+        return lvl <= level;
+    }
+
+    /**
+     * Get the current level
+     *
+     * @return the level
+     */
+    public int level() {
+        return level;
+    }
+
+    /**
+     * Set the current level
+     *
+     * @param lvl new level, clamped to [ERROR, TRACE]
+     */
+    public void set_level(int lvl) {
+        level = Math.max(ERROR, Math.min(TRACE, lvl));
+    }
+
+    /**
+     * Queue a message, if the level is enabled; never blocks
+     *
+     * @param lvl level
+     * @param s message
+     */
+    public void log(int lvl, String s) {
+        if (lvl > level) {
+            return;
+        }
+        if (queued.incrementAndGet() > capacity) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.offer(s);
+        if (queued.get() == 1) {
+            LockSupport.unpark(this);
+        }
+    }
+
+    /**
+     * Get the number of messages dropped because the queue was full
+     *
+     * @return number of dropped messages
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops the writer thread, after writing the queued messages
+     */
+    public void stopRunning() {
+        keepRunning = false;
+        LockSupport.unpark(this);
+    }
+
+    // Thread main function
+    @Override
+    public void run() {
+        StringBuilder sb = new StringBuilder();
+        while (keepRunning || !queue.isEmpty()) {
+            String s;
+            while ((s = queue.poll()) != null) {
+                queued.decrementAndGet();
+                sb.append(s);
+            }
+            if (sb.length() > 0) {
+                try {
+                    sink.write(sb.toString());
+                } catch (RuntimeException e) {
+                    System.err.println("Log sink error: " + e);
+                }
+                sb.setLength(0);
+            } else if (keepRunning) {
+                LockSupport.parkNanos(this, 50000000L);
+            }
+        }
+    }
+}
@@ -12,12 +12,16 @@
 package router;
 
 import java.io.*;
+import java.nio.*;
 
 /** 
  * Hold ROUTE vector elements 
  */
 public class Entry {
     
+    /** Size of an encoded entry [bytes] */
+    public final static int SIZE = 6;
+    
     /** Destination */
     public char dest;
     /** Distance */
@@ -56,6 +60,15 @@ public class Entry {
     public Entry(DataInputStream dis) throws java.io.IOException {
         readEntry(dis);
     }
+    
+    /**
+     * Create a new instance of Entry from a received packet buffer
+     * @param buf  buffer positioned at the entry
+     * @throws java.io.IOException  Read error
+     */
+    public Entry(ByteBuffer buf) throws java.io.IOException {
+        readEntry(buf);
+    }
  
     /**
      * Update the Entry fields
@@ -75,13 +88,44 @@ public class Entry {
         this.dist= dist;
     }
     
+    /**
+     * Hash of an entry, used in the digest of a vector; entries with
+     * infinite distance do not count
+     * @param dest  destination address
+     * @param dist  distance
+     * @return the hash value, 0 for infinite distances
+     */
+    public static int hash(char dest, int dist) {
+        if (dist >= router.MAX_DISTANCE)
+            return 0;
+        int h= dest * 0x9E3779B1 + dist * 0x85EBCA6B;
+        h^= h >>> 16;
+        h*= 0x7FEB352D;
+        h^= h >>> 15;
+        h*= 0x846CA68B;
+        h^= h >>> 16;
+        return h;
+    }
+    
+    /**
+     * Order-independent digest of a vector: the sum of the entry hashes
+     * @param vec  vector
+     * @return the digest
+     */
+    public static int digest(Entry[] vec) {
+        int d= 0;
+        for (Entry e : vec)
+            d+= hash(e.dest, e.dist);
+        return d;
+    }
+    
     /**
      * Return a string with the entry contents
      * @return string with the entry contents
      */
     @Override
     public String toString() {
-        return "("+dest+" , "+dist+")";
+        return "("+NodeId.toString(dest)+" , "+dist+")";
     }
     
     /**
@@ -119,8 +163,8 @@ public class Entry {
      */
     public final void readEntry(DataInputStream dis) throws java.io.IOException {
         dest= dis.readChar();
-        if (!Character.isUpperCase(dest)) {
-            throw new IOException("Invalid address '"+dest+"'");
+        if (!NodeId.valid(dest)) {
+            throw new IOException("Invalid address '"+NodeId.toString(dest)+"'");
         }            
         dist= dis.readInt();
         if ((dist<0) || (dist>router.MAX_DISTANCE)) {
@@ -128,4 +172,23 @@ public class Entry {
         }
     }
     
+    /**
+     * Read the Entry contents from one ByteBuffer, without copying it
+     * @param buf  buffer positioned at the entry
+     * @throws java.io.IOException Read error
+     */
+    public final void readEntry(ByteBuffer buf) throws java.io.IOException {
+        if (buf.remaining() < SIZE) {
+            throw new IOException("Entry too short");
+        }
+        dest= buf.getChar();
+        if (!NodeId.valid(dest)) {
+            throw new IOException("Invalid address '"+NodeId.toString(dest)+"'");
+        }            
+        dist= buf.getInt();
+        if ((dist<0) || (dist>router.MAX_DISTANCE)) {
+            throw new IOException("Invalid distance '"+dist+"'");
+        }
+    }
+    
 }
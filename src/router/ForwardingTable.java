@@ -0,0 +1,158 @@
+/**
+ * Redes Integradas de Telecomunicacoes I MIEEC 2014/2015
+ *
+ * ForwardingTable.java
+ *
+ * Immutable forwarding table used by the DATA path
+ */
+package router;
+
+import java.net.*;
+import java.util.*;
+
+/**
+ * Immutable forwarding table (FIB), derived from the routing table and the
+ * neighbour list. It is a flat array indexed by destination name, holding
+ * the next hops to each destination, with their output queue and resolved
+ * socket address, so forwarding a packet is one array load. The control
+ * plane builds a new table whenever the routing table or the neighbours
+ * change, and replaces the reference.
+ *
+ * When several next hops tie for the lowest cost, a hash of the flow
+ * (sender, destination) selects one of them, so all the packets of a flow
+ * follow the same path and keep their order. When none of them is usable
+ * (the neighbour left, or the route is unreachable), the table holds the
+ * loop-free alternate next hop instead.
+ */
+public final class ForwardingTable {
+
+    /**
+     * One next hop, resolved
+     */
+    public static final class NextHop {
+
+        /** Output queue of the next hop */
+        public final Transmitter.OutputQueue queue;
+        /** Socket address of the next hop */
+        public final InetSocketAddress addr;
+
+        private NextHop(Transmitter.OutputQueue queue, InetSocketAddress addr) {
+            this.queue = queue;
+            this.addr = addr;
+        }
+    }
+
+    /** Empty table */
+    public final static ForwardingTable EMPTY = new ForwardingTable((char) 0,
+            new NextHop[0][]);
+
+    /** Name of the first slot */
+    private final char base;
+    /** Next hops, indexed by destination - base; null if there is no route */
+    private final NextHop[][] hops;
+
+    private ForwardingTable(char base, NextHop[][] hops) {
+        this.base = base;
+        this.hops = hops;
+    }
+
+    /**
+     * Build a forwarding table
+     *
+     * @param local_name local name
+     * @param self_addr local socket address, used for the local destination
+     * @param tab routing table
+     * @param neig neighbour list, resolves the next hop addresses
+     * @param tx transmitter, holds the output queues
+     * @return the new table
+     */
+    public static ForwardingTable build(char local_name, InetSocketAddress self_addr,
+            Map<Character, RouteEntry> tab, neighbourList neig, Transmitter tx) {
+        if ((tab == null) || tab.isEmpty()) {
+            return EMPTY;
+        }
+        char min = Character.MAX_VALUE;
+        char max = Character.MIN_VALUE;
+        for (char dest : tab.keySet()) {
+            min = (char) Math.min(min, dest);
+            max = (char) Math.max(max, dest);
+        }
+        NextHop[][] hops = new NextHop[max - min + 1][];
+        for (RouteEntry rt : tab.values()) {
+            int i = rt.dest - min;
+            if (rt.dest == local_name) {
+                hops[i] = new NextHop[]{new NextHop(tx.queue(local_name), self_addr)};
+                continue;
+            }
+            ArrayList<NextHop> list = new ArrayList<>(rt.next_hops.length);
+            if (rt.dist < router.MAX_DISTANCE) {
+                for (char h : rt.next_hops) {
+                    add_hop(list, h, neig, tx);
+                }
+            }
+            if (list.isEmpty() && (rt.backup_hop != ' ')) {
+                add_hop(list, rt.backup_hop, neig, tx);
+            }
+            if (list.isEmpty()) {
+                // Unreachable and no alternate: keep the previous behaviour
+                add_hop(list, rt.next_hop, neig, tx);
+            }
+            if (!list.isEmpty()) {
+                hops[i] = list.toArray(new NextHop[list.size()]);
+            }
+        }
+        return new ForwardingTable(min, hops);
+    }
+
+    /**
+     * Resolve a next hop and add it to a list, if the neighbour exists
+     *
+     * @param list list of next hops
+     * @param name next hop name
+     * @param neig neighbour list
+     * @param tx transmitter, holds the output queues
+     */
+    private static void add_hop(ArrayList<NextHop> list, char name,
+            neighbourList neig, Transmitter tx) {
+        neighbour pt = neig.locate_neig(name);
+        if ((pt != null) && (pt.sockaddr != null)) {
+            list.add(new NextHop(tx.queue(name), pt.sockaddr));
+        }
+    }
+
+    /**
+     * Hash of a flow, stable across packets and table rebuilds
+     *
+     * @param sender sender name
+     * @param dest destination name
+     * @return a non-negative hash value
+     */
+    public static int flow_hash(char sender, char dest) {
+        int h = ((sender << 16) | dest) * 0x9E3779B9;
+        return h >>> 16;
+    }
+
+    /**
+     * Select the next hop for a packet
+     *
+     * @param dest destination name
+     * @param flow flow hash, selects one of the equal-cost next hops
+     * @return the next hop, or null if there is no route
+     */
+    public NextHop next_hop(char dest, int flow) {
+        int i = dest - base;
+        if ((i < 0) || (i >= hops.length)) {
+            return null;
+        }
+        NextHop[] h = hops[i];
+        if (h == null) {
+            return null;
+        }
+        if (h.length == 1) {
+            return h[0];
+        }
+        NextHop hop = h[flow % h.length];
+        hop.queue.multipath.increment();
+        return hop;
+    }
+}
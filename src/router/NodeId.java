@@ -0,0 +1,136 @@
+/**
+ * Redes Integradas de Telecomunicacoes I MIEEC 2014/2015
+ *
+ * NodeId.java
+ *
+ * Node address formats: single letters, or 16 bit numbers
+ */
+package router;
+
+/**
+ * Node address formats. Addresses are always held in a char and sent as 2
+ * bytes in HELLO, BYE, ROUTE and DATA headers. In the letter mode (the
+ * default) they are upper case letters, and the DATA path holds one byte
+ * per hop. In the 16 bit mode they are numbers from 1 to 65534 (32 is
+ * reserved for the empty name ' '), written in decimal, and the DATA path
+ * holds two bytes per hop.
+ *
+ * The mode is a property of the whole network, so it is set once per
+ * process when the router starts.
+ */
+public final class NodeId {
+
+    /** Highest 16 bit address */
+    public final static int MAX_WIDE = 0xFFFE;
+
+    /** True in the 16 bit mode */
+    private static volatile boolean wide = false;
+
+    private NodeId() {
+    }
+
+    /**
+     * Select the address format
+     *
+     * @param wide true for 16 bit addresses, false for letters
+     */
+    public static void set_wide(boolean wide) {
+        NodeId.wide = wide;
+    }
+
+    /**
+     * Test the address format
+     *
+     * @return true for 16 bit addresses
+     */
+    public static boolean is_wide() {
+        return wide;
+    }
+
+    /**
+     * Test if an address is valid in the current format
+     *
+     * @param c address
+     * @return true if valid
+     */
+    public static boolean valid(char c) {
+        if (wide) {
+            return (c != 0) && (c != ' ') && (c <= MAX_WIDE);
+        }
+        return Character.isUpperCase(c);
+    }
+
+    /**
+     * Parse an address: a letter, or a decimal number in the 16 bit mode
+     *
+     * @param s string with the address
+     * @return the address, or ' ' if invalid
+     */
+    public static char parse(String s) {
+        return parse(s, wide);
+    }
+
+    /**
+     * Parse an address in a given format, before the format is selected
+     *
+     * @param s string with the address
+     * @param wide true for the 16 bit format
+     * @return the address, or ' ' if invalid
+     */
+    public static char parse(String s, boolean wide) {
+        s = s.trim();
+        if ((s.length() == 1) && Character.isUpperCase(s.charAt(0))) {
+            return s.charAt(0);
+        }
+        if (!wide) {
+            return ' ';
+        }
+        try {
+            int n = Integer.parseInt(s);
+            if ((n <= 0) || (n > MAX_WIDE) || (n == ' ')) {
+                return ' ';
+            }
+            return (char) n;
+        } catch (NumberFormatException e) {
+            return ' ';
+        }
+    }
+
+    /**
+     * Format an address
+     *
+     * @param c address
+     * @return the letter, or the decimal number in the 16 bit mode
+     */
+    public static String toString(char c) {
+        if (!wide || (c == ' ')) {
+            return String.valueOf(c);
+        }
+        return Integer.toString(c);
+    }
+
+    /**
+     * Get the next address, used to find a free name when the port is busy
+     *
+     * @param c address
+     * @return the next address, or ' ' after the last one
+     */
+    public static char next(char c) {
+        do {
+            c++;
+            if (wide ? (c > MAX_WIDE) : (c > 'Z')) {
+                return ' ';
+            }
+        } while (!valid(c));
+        return c;
+    }
+
+    /**
+     * Number of bytes used by one address in the DATA path
+     *
+     * @return 1 for letters, 2 for 16 bit addresses
+     */
+    public static int path_bytes() {
+        return wide ? 2 : 1;
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ * Redes Integradas de Telecomunicacoes I MIEEC 2014/2015
+ *
+ * Reassembly.java
+ *
+ * Reassembly of fragmented DATA messages at the destination
+ */
+package router;
+
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Reassembly of fragmented DATA messages at the destination. Messages are
+ * identified by (sender, sequence number); every fragment except the last
+ * carries router.MAX_FRAGMENT bytes, so a fragment is identified by its
+ * offset. The buffers are bounded in number and total size, and a message
+ * that is not complete after the timeout is discarded.
+ */
+public class Reassembly {
+
+    /** Default maximum number of messages being reassembled */
+    public final static int DEFAULT_MAX_MESSAGES = 64;
+    /** Default maximum number of bytes held in reassembly buffers */
+    public final static int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+    /** Default time to complete a message [ms] */
+    public final static long DEFAULT_TIMEOUT = 5000;
+
+    /**
+     * Message being reassembled
+     */
+    private static final class Message {
+
+        final byte[] data;
+        /** Fragments received, by index */
+        final BitSet got;
+        /** Number of fragments still missing */
+        int missing;
+        /** Time when the first fragment arrived [ms] */
+        final long start;
+
+        Message(int total, long now) {
+            data = new byte[total];
+            int n = (total + router.MAX_FRAGMENT - 1) / router.MAX_FRAGMENT;
+            got = new BitSet(n);
+            missing = n;
+            start = now;
+        }
+    }
+
+    private final int max_messages;
+    private final int max_bytes;
+    private final long timeout;
+    /** Messages being reassembled, by (sender, seq) */
+    private final HashMap<Long, Message> pending = new HashMap<>();
+    /** Bytes held in the pending messages */
+    private int bytes;
+
+    /* Counters; updated under the object lock */
+    private long completed;
+    private long expired;
+    private long overflow;
+    private long duplicates;
+
+    /**
+     * Constructor
+     *
+     * @param max_messages maximum number of messages being reassembled
+     * @param max_bytes maximum number of bytes held
+     * @param timeout time to complete a message [ms]
+     */
+    public Reassembly(int max_messages, int max_bytes, long timeout) {
+        this.max_messages = max_messages;
+        this.max_bytes = max_bytes;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Add a fragment; the caller has validated the offset and lengths
+     *
+     * @param sender sender name
+     * @param seq message sequence number
+     * @param offset fragment offset in the message
+     * @param total message length
+     * @param buf buffer positioned at the fragment contents
+     * @param len fragment length
+     * @return the message, if this fragment completed it; null otherwise
+     */
+    public synchronized byte[] add(char sender, int seq, int offset, int total,
+            ByteBuffer buf, int len) {
+        long now = System.currentTimeMillis();
+        Long key = ((long) sender << 32) | (seq & 0xFFFFFFFFL);
+        Message m = pending.get(key);
+        if ((m != null) && (now - m.start > timeout)) {
+            remove(key, m);
+            expired++;
+            m = null;
+        }
+        if (m == null) {
+            expire(now);
+            if ((pending.size() >= max_messages) || (bytes + total > max_bytes)) {
+                overflow++;
+                return null;
+            }
+            m = new Message(total, now);
+            pending.put(key, m);
+            bytes += total;
+        } else if (m.data.length != total) {
+            duplicates++;
+            return null;
+        }
+        int index = offset / router.MAX_FRAGMENT;
+        if (m.got.get(index)) {
+            duplicates++;
+            return null;
+        }
+        buf.get(m.data, offset, len);
+        m.got.set(index);
+        if (--m.missing > 0) {
+            return null;
+        }
+        remove(key, m);
+        completed++;
+        return m.data;
+    }
+
+    private void remove(Long key, Message m) {
+        pending.remove(key);
+        bytes -= m.data.length;
+    }
+
+    /**
+     * Discard the messages older than the timeout
+     *
+     * @param now current time [ms]
+     */
+    private void expire(long now) {
+        Iterator<Message> it = pending.values().iterator();
+        while (it.hasNext()) {
+            Message m = it.next();
+            if (now - m.start > timeout) {
+                it.remove();
+                bytes -= m.data.length;
+                expired++;
+            }
+        }
+    }
+
+    /**
+     * Clear the counters
+     */
+    public synchronized void reset() {
+        completed = 0;
+        expired = 0;
+        overflow = 0;
+        duplicates = 0;
+    }
+
+    /**
+     * Return a string with the reassembly counters
+     *
+     * @return string with the counters
+     */
+    public synchronized String statistics() {
+        expire(System.currentTimeMillis());
+        return "Reassembly: pending:" + pending.size() + "/" + max_messages
+                + " bytes:" + bytes + "/" + max_bytes
+                + " completed:" + completed + " expired:" + expired
+                + " overflow:" + overflow + " duplicates:" + duplicates;
+    }
+}
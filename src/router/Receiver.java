@@ -0,0 +1,456 @@
+/**
+ * Redes Integradas de Telecomunicacoes I MIEEC 2014/2015
+ *
+ * Receiver.java
+ *
+ * Receive pipeline: one thread reads the socket and hands the packets to a
+ * pool of worker threads
+ */
+package router;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Receive pipeline: one thread reads the socket and hands the packets to a
+ * pool of worker threads. Packets are classified by their type byte before
+ * decoding. DATA packets are spread over the DATA workers by a hash of
+ * their (sender, dest) flow, so each flow stays in order; control packets
+ * (HELLO, BYE, ROUTE) have their own buffers, queue and thread, so they are
+ * never delayed or dropped because of a DATA flood, and are processed in
+ * the order they arrived.
+ *
+ * Each time the socket becomes readable, the reader drains up to batch_size
+ * pending datagrams and each DATA worker gets its share of them as one
+ * batch. The control thread processes all the queued control packets under
+ * a single acquisition of the control lock.
+ */
+public class Receiver extends Thread {
+
+    /**
+     * Object that decodes and processes the received packets
+     */
+    public interface Handler {
+
+        /**
+         * Process one packet; the buffer is reused after the call returns
+         *
+         * @param from sender socket address
+         * @param buf buffer with the packet, positioned at the first byte
+         * @return true if packet was processed with success, false otherwise
+         */
+        boolean process_packet(InetSocketAddress from, ByteBuffer buf);
+
+        /**
+         * Get the lock held while processing control packets
+         *
+         * @return the lock object
+         */
+        Object control_lock();
+
+        /**
+         * Report an error
+         *
+         * @param s message to write
+         */
+        void Log(String s);
+    }
+
+    /**
+     * Default maximum number of datagrams read per wakeup
+     */
+    public final static int DEFAULT_BATCH_SIZE = 32;
+    /**
+     * Number of batches in flight per worker
+     */
+    public final static int BATCHES_PER_WORKER = 8;
+    /**
+     * Number of buffers reserved for control packets
+     */
+    public final static int CONTROL_BUFFERS = 256;
+
+    /**
+     * Packet buffer, part of the preallocated ring
+     */
+    private static final class Packet {
+
+        final ByteBuffer buf = ByteBuffer.allocateDirect(router.MAX_PACKET_LEN);
+        InetSocketAddress from;
+    }
+
+    /**
+     * Group of packets handed to one worker
+     */
+    private static final class Batch {
+
+        final Packet[] pkts;
+        int len;
+
+        Batch(int size) {
+            pkts = new Packet[size];
+        }
+    }
+
+    /**
+     * Control thread, processes the control packets in arrival order
+     */
+    private final class ControlWorker extends Thread {
+
+        final BlockingQueue<Packet> queue = new ArrayBlockingQueue<>(CONTROL_BUFFERS);
+
+        ControlWorker() {
+            super("Receiver control");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Packet[] pkts = new Packet[batch_size];
+            try {
+                while (keepRunning) {
+                    pkts[0] = queue.take();
+                    int n = 1;
+                    Packet p;
+                    while ((n < pkts.length) && ((p = queue.poll()) != null)) {
+                        pkts[n++] = p;
+                    }
+                    synchronized (handler.control_lock()) {
+                        for (int i = 0; i < n; i++) {
+                            process(pkts[i], free_control);
+                            pkts[i] = null;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Receiver stopped
+            }
+        }
+    }
+
+    /**
+     * Worker thread, processes the DATA batches from its own queue
+     */
+    private final class Worker extends Thread {
+
+        final BlockingQueue<Batch> queue
+                = new ArrayBlockingQueue<>(BATCHES_PER_WORKER);
+        /**
+         * Batch being filled by the reader
+         */
+        Batch pending;
+
+        Worker(int n) {
+            super("Receiver worker " + n);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (keepRunning) {
+                    Batch b = queue.take();
+                    for (int i = 0; i < b.len; i++) {
+                        process(b.pkts[i], free);
+                    }
+                    b.len = 0;
+                    free_batches.offer(b);
+                }
+            } catch (InterruptedException e) {
+                // Receiver stopped
+            }
+        }
+    }
+
+    /**
+     * Process one packet and return its buffer to the pool
+     *
+     * @param p packet
+     * @param pool pool the buffer belongs to
+     */
+    private void process(Packet p, BlockingQueue<Packet> pool) {
+        try {
+            handler.process_packet(p.from, p.buf);
+        } catch (RuntimeException e) {
+            handler.Log("Error processing packet: " + e + "\n");
+        } finally {
+            pool.offer(p);
+        }
+    }
+
+    private volatile boolean keepRunning = true;
+    private final DatagramChannel ch;
+    private final Selector selector;
+    private final Handler handler;
+    private final Worker[] workers;
+    private final ControlWorker control;
+    /**
+     * Maximum number of datagrams read per wakeup
+     */
+    private final int batch_size;
+    /**
+     * Buffers of the ring not in use
+     */
+    private final BlockingQueue<Packet> free;
+    /**
+     * Control packet buffers not in use
+     */
+    private final BlockingQueue<Packet> free_control;
+    /**
+     * Batch objects not in use
+     */
+    private final BlockingQueue<Batch> free_batches;
+    /* Batch occupancy counters; only written by the reader thread */
+    /** Number of wakeups that read at least one datagram */
+    private volatile long batches;
+    /** Number of datagrams read */
+    private volatile long batch_pkts;
+    /** Number of batches that reached batch_size */
+    private volatile long batches_full;
+    /** Largest batch read */
+    private volatile int batch_max;
+    /**
+     * DATA packets dropped because all the buffers were in use
+     */
+    public final AtomicLong dropped_data = new AtomicLong();
+    /**
+     * Control packets dropped because all the control buffers were in use
+     */
+    public final AtomicLong dropped_control = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param ch datagram channel, in non-blocking mode
+     * @param handler packet handler
+     * @param n_workers number of worker threads; 0 uses one per processor
+     * @param batch_size maximum number of datagrams read per wakeup
+     * @throws IOException error registering the channel
+     */
+    public Receiver(DatagramChannel ch, Handler handler, int n_workers,
+            int batch_size) throws IOException {
+        super("Receiver");
+        this.ch = ch;
+        this.handler = handler;
+        this.batch_size = Math.max(1, batch_size);
+        if (n_workers <= 0) {
+            n_workers = Runtime.getRuntime().availableProcessors();
+        }
+        workers = new Worker[n_workers];
+        int n_batches = n_workers * BATCHES_PER_WORKER;
+        free = new ArrayBlockingQueue<>(n_batches * this.batch_size);
+        for (int i = 0; i < n_batches * this.batch_size; i++) {
+            free.add(new Packet());
+        }
+        free_batches = new ArrayBlockingQueue<>(n_batches);
+        for (int i = 0; i < n_batches; i++) {
+            free_batches.add(new Batch(this.batch_size));
+        }
+        free_control = new ArrayBlockingQueue<>(CONTROL_BUFFERS);
+        for (int i = 0; i < CONTROL_BUFFERS; i++) {
+            free_control.add(new Packet());
+        }
+        for (int i = 0; i < n_workers; i++) {
+            workers[i] = new Worker(i);
+        }
+        control = new ControlWorker();
+        selector = Selector.open();
+        ch.register(selector, SelectionKey.OP_READ);
+    }
+
+    /**
+     * Test if a packet is a control packet, reading only the type byte
+     *
+     * @param buf buffer with the packet
+     * @return true for HELLO, BYE and ROUTE packets
+     */
+    public static boolean is_control(ByteBuffer buf) {
+        return buf.limit() > 0 && Statistics.type_of(buf.get(0)) != Statistics.DATA;
+    }
+
+    /**
+     * Hand a control packet to the control thread, moving it to a control
+     * buffer
+     *
+     * @param buf buffer with the packet
+     * @param from sender socket address
+     */
+    private void dispatch_control(ByteBuffer buf, InetSocketAddress from) {
+        Packet c = free_control.poll();
+        if (c == null) {
+            dropped_control.incrementAndGet();
+            return;
+        }
+        c.buf.clear();
+        c.buf.put(buf);
+        c.buf.flip();
+        c.from = from;
+        control.queue.offer(c);
+    }
+
+    /**
+     * Add a DATA packet to the pending batch of the worker of its flow; the
+     * packets of one (sender, dest) flow always go to the same worker, so
+     * they are forwarded in order
+     *
+     * @param p packet, with at least the sender and the destination
+     */
+    private void dispatch(Packet p) {
+        Worker w = workers[flow_worker(p.buf)];
+        if (w.pending == null) {
+            w.pending = free_batches.poll();
+            if (w.pending == null) {
+                // Worker is full
+                dropped_data.incrementAndGet();
+                free.offer(p);
+                return;
+            }
+        }
+        w.pending.pkts[w.pending.len++] = p;
+    }
+
+    /**
+     * Select the worker of a DATA packet, from its flow hash
+     *
+     * @param buf buffer with the packet
+     * @return worker index
+     */
+    private int flow_worker(ByteBuffer buf) {
+        if (buf.limit() < 5) {
+            return 0;
+        }
+        int h = ForwardingTable.flow_hash(buf.getChar(1), buf.getChar(3));
+        return h % workers.length;
+    }
+
+    /**
+     * Hand the pending batches to the workers
+     */
+    private void flush() {
+        for (Worker w : workers) {
+            if (w.pending != null) {
+                if (!w.queue.offer(w.pending)) {
+                    for (int i = 0; i < w.pending.len; i++) {
+                        free.offer(w.pending.pkts[i]);
+                    }
+                    dropped_data.addAndGet(w.pending.len);
+                    w.pending.len = 0;
+                    free_batches.offer(w.pending);
+                }
+                w.pending = null;
+            }
+        }
+    }
+
+    /**
+     * Read all the pending datagrams, up to batch_size
+     *
+     * @param discard buffer used when the ring is exhausted
+     * @return number of datagrams read
+     * @throws IOException error reading the socket
+     */
+    private int drain(ByteBuffer discard) throws IOException {
+        int n = 0;
+        while (n < batch_size) {
+            Packet p = free.poll();
+            if (p == null) {
+                // Ring exhausted: receive and drop DATA, keeping the socket drained
+                discard.clear();
+                InetSocketAddress from = (InetSocketAddress) ch.receive(discard);
+                if (from == null) {
+                    break;
+                }
+                discard.flip();
+                if (is_control(discard)) {
+                    dispatch_control(discard, from);
+                } else {
+                    dropped_data.incrementAndGet();
+                }
+                n++;
+                continue;
+            }
+            p.buf.clear();
+            p.from = (InetSocketAddress) ch.receive(p.buf);
+            if (p.from == null) {
+                free.offer(p);
+                break;
+            }
+            p.buf.flip();
+            if (is_control(p.buf)) {
+                dispatch_control(p.buf, p.from);
+                free.offer(p);
+            } else {
+                dispatch(p);
+            }
+            n++;
+        }
+        return n;
+    }
+
+    // Thread main function
+    @Override
+    public void run() {
+        control.start();
+        for (Worker w : workers) {
+            w.start();
+        }
+        ByteBuffer discard = ByteBuffer.allocateDirect(router.MAX_PACKET_LEN);
+        try {
+            while (keepRunning) {
+                selector.select();
+                selector.selectedKeys().clear();
+                int n = drain(discard);
+                flush();
+                if (n > 0) {
+                    batches++;
+                    batch_pkts += n;
+                    if (n == batch_size) {
+                        batches_full++;
+                    }
+                    if (n > batch_max) {
+                        batch_max = n;
+                    }
+                }
+            }
+        } catch (ClosedChannelException | ClosedSelectorException e) {
+            // Router stopped
+        } catch (IOException e) {
+            if (keepRunning) {
+                handler.Log("IO exception receiving data from socket : " + e);
+            }
+        }
+        stopRunning();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    // Stops thread
+    public void stopRunning() {
+        keepRunning = false;
+        selector.wakeup();
+        control.interrupt();
+        for (Worker w : workers) {
+            w.interrupt();
+        }
+    }
+
+    /**
+     * Return a string with the batch occupancy counters
+     *
+     * @return string with the counters
+     */
+    public String batch_statistics() {
+        long b = batches;
+        return "Batches:" + b + " pkts:" + batch_pkts
+                + " avg:" + (b == 0 ? 0 : batch_pkts / b)
+                + " max:" + batch_max + "/" + batch_size
+                + " full:" + batches_full + " dropped DATA:" + dropped_data.get()
+                + " control:" + dropped_control.get();
+    }
+}
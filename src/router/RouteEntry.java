@@ -11,6 +11,7 @@
  */
 package router;
 
+import java.util.Arrays;
 
 public class RouteEntry extends Entry {
 
@@ -22,16 +23,32 @@ public class RouteEntry extends Entry {
     /** next hop */
     public char next_hop;
     
-    /** Holdown counter */
-    public int holddownCounter;
+    /** Equal-cost next hops, sorted, including next_hop; never modified in place */
+    public char[] next_hops;
+    
+    /** Loop-free alternate next hop, used when next_hop fails; ' ' if none */
+    public char backup_hop;
+    
+    /** Distance through the alternate next hop */
+    public int backup_dist;
     
     //Indentifies if the entry is in Hold Down or not
     public boolean isHolddown;
     
     //Distance vector had before going into Hold Down
     public int distHolddown;
-    // Declare here a field to store one holdown counter
-    //     and add the additional necessary methods to handle it!
+    
+    /** Route flap penalty at penalty_time */
+    public int penalty;
+    
+    /** Time the penalty was calculated [ms] */
+    public long penalty_time;
+    
+    /** Half-life of the penalty [ms]; 0 if it does not decay */
+    public long penalty_half_life;
+    
+    /** True if flap dampening suppressed the route: it is advertised as unreachable */
+    public boolean suppressed;
 
     /**
      * Constructor - create an empty instance to a destination
@@ -40,8 +57,10 @@ public class RouteEntry extends Entry {
     public RouteEntry(char dest) {
         super(dest, router.MAX_DISTANCE);
         next_hop= ' ';
+        next_hops= new char[0];
+        backup_hop= ' ';
+        backup_dist= router.MAX_DISTANCE;
         this.isHolddown=false;
-        this.holddownCounter=0;
     }
 
     /**
@@ -51,9 +70,15 @@ public class RouteEntry extends Entry {
     public RouteEntry(RouteEntry src) {
         super(src);
         this.next_hop= src.next_hop;
-        this.holddownCounter = src.holddownCounter;
+        this.next_hops= src.next_hops;
+        this.backup_hop= src.backup_hop;
+        this.backup_dist= src.backup_dist;
         this.isHolddown = src.isHolddown;
         this.distHolddown = src.distHolddown;
+        this.penalty = src.penalty;
+        this.penalty_time = src.penalty_time;
+        this.penalty_half_life = src.penalty_half_life;
+        this.suppressed = src.suppressed;
     }
 
     /**
@@ -65,8 +90,80 @@ public class RouteEntry extends Entry {
     public RouteEntry(char dest, char next_hop, int dist) {
         super(dest, dist);
         this.next_hop= next_hop;
+        this.next_hops= (next_hop == ' ') ? new char[0] : new char[]{next_hop};
+        this.backup_hop= ' ';
+        this.backup_dist= router.MAX_DISTANCE;
         this.isHolddown = false;
-        this.holddownCounter = 0;
+    }
+    
+    /**
+     * Decay a route flap penalty exponentially
+     * @param penalty    penalty
+     * @param elapsed    time since it was calculated [ms]
+     * @param half_life  half-life [ms]
+     * @return the decayed penalty
+     */
+    public static double decay(double penalty, long elapsed, long half_life) {
+        return penalty * Math.pow(2, -(double) Math.max(0, elapsed) / half_life);
+    }
+    
+    /**
+     * Get the route flap penalty decayed until now
+     * @param now  current time [ms]
+     * @return the penalty
+     */
+    public int penalty_at(long now) {
+        if ((penalty == 0) || (penalty_half_life == 0))
+            return penalty;
+        return (int) decay(penalty, now - penalty_time, penalty_half_life);
+    }
+    
+    /**
+     * Add an equal-cost next hop
+     * @param hop  next hop address
+     */
+    public void add_next_hop(char hop) {
+        int i= Arrays.binarySearch(next_hops, hop);
+        if (i >= 0)
+            return;
+        i= -i - 1;
+        char[] n= new char[next_hops.length + 1];
+        System.arraycopy(next_hops, 0, n, 0, i);
+        n[i]= hop;
+        System.arraycopy(next_hops, i, n, i + 1, next_hops.length - i);
+        next_hops= n;
+    }
+    
+    /**
+     * Compares the routing fields to another entry: destination, distance,
+     * next hops, alternate next hop and distance, holddown state and, in
+     * holddown, the distance before it; the flap penalty and suppression
+     * are not compared
+     * @param e  a RouteEntry object, or null
+     * @return true if the route is the same
+     */
+    public boolean same_route(RouteEntry e) {
+        return equals_to(e) && (next_hop == e.next_hop)
+                && Arrays.equals(next_hops, e.next_hops)
+                && (backup_hop == e.backup_hop) && (backup_dist == e.backup_dist)
+                && (isHolddown == e.isHolddown)
+                && (!isHolddown || (distHolddown == e.distHolddown));
+    }
+    
+    /**
+     * Return the next hops as a string
+     * @return the next hop, or the equal-cost next hops separated by commas
+     */
+    public String next_hops_string() {
+        if (next_hops.length <= 1)
+            return NodeId.toString(next_hop);
+        StringBuilder sb= new StringBuilder();
+        for (char h : next_hops) {
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(NodeId.toString(h));
+        }
+        return sb.toString();
     }
     
 // Holdown algorithm specific field
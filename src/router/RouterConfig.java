@@ -0,0 +1,362 @@
+/**
+ * Redes Integradas de Telecomunicacoes I MIEEC 2014/2015
+ *
+ * RouterConfig.java
+ *
+ * Immutable snapshot of the router configuration
+ */
+package router;
+
+import java.net.*;
+import java.util.*;
+
+/**
+ * Immutable snapshot of the router configuration and identity. It is built
+ * once when the router is activated, with a Builder; a reconfiguration
+ * builds a new object from copy() and replaces the reference, so the packet
+ * handling code only does plain field reads.
+ */
+public final class RouterConfig {
+
+    /** Local name */
+    public final char name;
+    /** Local port number */
+    public final int port;
+    /** Local IP address, replaces 127.x sender addresses */
+    public final InetAddress local_addr;
+    /** Local IP address as a string */
+    public final String local_ip;
+    /** ROUTE sending period [s] */
+    public final int period;
+    /** Min interval between ROUTE [s] */
+    public final int min_interval;
+    /** Uses Split Horizon with Poison Reverse */
+    public final boolean split_horizon;
+    /** Uses Hold down */
+    public final boolean holddown;
+    /** Hold down time [s] */
+    public final int holddown_time;
+    /** Sends ROUTE packets when the network changes */
+    public final boolean send_if_changes;
+    /** Number of receive worker threads; 0 uses one per processor */
+    public final int n_workers;
+    /** Maximum number of datagrams read per wakeup */
+    public final int batch_size;
+    /** Maximum number of packets per output queue */
+    public final int queue_len;
+    /** Output queue drop policy (Transmitter.TAIL_DROP or Transmitter.RED) */
+    public final int drop_policy;
+    /** Uses 16 bit node addresses instead of letters (see NodeId) */
+    public final boolean wide_ids;
+    /** Random variation of the ROUTE sending period [% of period] */
+    public final int jitter;
+    /** Interval between the ROUTE packets of one update [ms]; 0 sends them back-to-back */
+    public final int pacing;
+    /** Window that collects the changes sent in one triggered update [ms] */
+    public final int coalesce;
+    /** Half-life of the route flap penalty [s]; 0 disables flap dampening */
+    public final int dampening;
+    /** Uses the DUAL feasibility condition instead of Hold down */
+    public final boolean dual;
+
+    /**
+     * Builder of a configuration. Each setter sets the field of the same
+     * name and returns the builder. The receive pipeline, output queue and
+     * routing tuning settings start with their defaults; the name, port,
+     * local address and the routing settings of the GUI must be set.
+     */
+    public static final class Builder {
+
+        private char name = ' ';
+        private int port;
+        private InetAddress local_addr;
+        private int period;
+        private int min_interval;
+        private boolean split_horizon;
+        private boolean holddown;
+        private int holddown_time;
+        private boolean send_if_changes;
+        private int n_workers = 0;
+        private int batch_size = Receiver.DEFAULT_BATCH_SIZE;
+        private int queue_len = Transmitter.DEFAULT_QUEUE_LEN;
+        private int drop_policy = Transmitter.TAIL_DROP;
+        private boolean wide_ids = false;
+        private int jitter = routing.DEFAULT_JITTER;
+        private int pacing = routing.DEFAULT_PACING;
+        private int coalesce = routing.DEFAULT_COALESCE;
+        private int dampening = routing.DEFAULT_DAMPENING;
+        private boolean dual = false;
+
+        private Builder() {
+        }
+
+        public Builder name(char name) {
+            this.name = name;
+            return this;
+        }
+
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        public Builder local_addr(InetAddress local_addr) {
+            this.local_addr = local_addr;
+            return this;
+        }
+
+        public Builder period(int period) {
+            this.period = period;
+            return this;
+        }
+
+        public Builder min_interval(int min_interval) {
+            this.min_interval = min_interval;
+            return this;
+        }
+
+        public Builder split_horizon(boolean split_horizon) {
+            this.split_horizon = split_horizon;
+            return this;
+        }
+
+        public Builder holddown(boolean holddown) {
+            this.holddown = holddown;
+            return this;
+        }
+
+        public Builder holddown_time(int holddown_time) {
+            this.holddown_time = holddown_time;
+            return this;
+        }
+
+        public Builder send_if_changes(boolean send_if_changes) {
+            this.send_if_changes = send_if_changes;
+            return this;
+        }
+
+        public Builder n_workers(int n_workers) {
+            this.n_workers = n_workers;
+            return this;
+        }
+
+        public Builder batch_size(int batch_size) {
+            this.batch_size = batch_size;
+            return this;
+        }
+
+        public Builder queue_len(int queue_len) {
+            this.queue_len = queue_len;
+            return this;
+        }
+
+        public Builder drop_policy(int drop_policy) {
+            this.drop_policy = drop_policy;
+            return this;
+        }
+
+        public Builder wide_ids(boolean wide_ids) {
+            this.wide_ids = wide_ids;
+            return this;
+        }
+
+        public Builder jitter(int jitter) {
+            this.jitter = jitter;
+            return this;
+        }
+
+        public Builder pacing(int pacing) {
+            this.pacing = pacing;
+            return this;
+        }
+
+        public Builder coalesce(int coalesce) {
+            this.coalesce = coalesce;
+            return this;
+        }
+
+        public Builder dampening(int dampening) {
+            this.dampening = dampening;
+            return this;
+        }
+
+        public Builder dual(boolean dual) {
+            this.dual = dual;
+            return this;
+        }
+
+        /**
+         * Build the configuration
+         *
+         * @return the configuration
+         * @throws IllegalArgumentException no local address
+         */
+        public RouterConfig build() {
+            if (local_addr == null) {
+                throw new IllegalArgumentException("No local address");
+            }
+            return new RouterConfig(this);
+        }
+    }
+
+    private RouterConfig(Builder b) {
+        this.name = b.name;
+        this.port = b.port;
+        this.local_addr = b.local_addr;
+        this.local_ip = b.local_addr.getHostAddress();
+        this.period = b.period;
+        this.min_interval = b.min_interval;
+        this.split_horizon = b.split_horizon;
+        this.holddown = b.holddown;
+        this.holddown_time = b.holddown_time;
+        this.send_if_changes = b.send_if_changes;
+        this.n_workers = b.n_workers;
+        this.batch_size = b.batch_size;
+        this.queue_len = b.queue_len;
+        this.drop_policy = b.drop_policy;
+        this.wide_ids = b.wide_ids;
+        this.jitter = Math.max(0, Math.min(100, b.jitter));
+        this.pacing = Math.max(0, b.pacing);
+        this.coalesce = Math.max(0, b.coalesce);
+        this.dampening = Math.max(0, b.dampening);
+        this.dual = b.dual;
+    }
+
+    /**
+     * Start a configuration with the default tuning settings
+     *
+     * @return a new builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Start a copy of this configuration, to change some settings
+     *
+     * @return a new builder with every setting of this configuration
+     */
+    public Builder copy() {
+        Builder b = new Builder();
+        b.name = name;
+        b.port = port;
+        b.local_addr = local_addr;
+        b.period = period;
+        b.min_interval = min_interval;
+        b.split_horizon = split_horizon;
+        b.holddown = holddown;
+        b.holddown_time = holddown_time;
+        b.send_if_changes = send_if_changes;
+        b.n_workers = n_workers;
+        b.batch_size = batch_size;
+        b.queue_len = queue_len;
+        b.drop_policy = drop_policy;
+        b.wide_ids = wide_ids;
+        b.jitter = jitter;
+        b.pacing = pacing;
+        b.coalesce = coalesce;
+        b.dampening = dampening;
+        b.dual = dual;
+        return b;
+    }
+
+    /**
+     * Create a configuration with the default local address, receive
+     * pipeline and output queue settings
+     *
+     * @param name local name
+     * @param port local port number
+     * @param period ROUTE sending period [s]
+     * @param min_interval minimum interval between ROUTE packets sent [s]
+     * @param split_horizon use Split Horizon
+     * @param holddown use Hold down
+     * @param holddown_time Hold down time [s]
+     * @param send_if_changes send ROUTE packets when the network changes
+     * @return the configuration
+     * @throws UnknownHostException local address unknown
+     */
+    public static RouterConfig create(char name, int port, int period,
+            int min_interval, boolean split_horizon, boolean holddown,
+            int holddown_time, boolean send_if_changes) throws UnknownHostException {
+        return builder().name(name).port(port)
+                .local_addr(InetAddress.getLocalHost())
+                .period(period).min_interval(min_interval)
+                .split_horizon(split_horizon).holddown(holddown)
+                .holddown_time(holddown_time).send_if_changes(send_if_changes)
+                .build();
+    }
+
+    /**
+     * Create a configuration from properties (see RouterDaemon.DEFAULTS)
+     *
+     * @param p properties
+     * @return the configuration
+     * @throws UnknownHostException local address unknown
+     * @throws IllegalArgumentException invalid values
+     */
+    public static RouterConfig from_properties(Properties p) throws UnknownHostException {
+        boolean wide_ids = Boolean.parseBoolean(p.getProperty("wide_ids", "false"));
+        String name = p.getProperty("name");
+        char c = (name == null) ? ' ' : NodeId.parse(name, wide_ids);
+        if (c == ' ') {
+            throw new IllegalArgumentException("Invalid name '" + name + "'");
+        }
+        return builder().name(c)
+                .port(Integer.parseInt(p.getProperty("port")))
+                .local_addr(InetAddress.getLocalHost())
+                .period(Integer.parseInt(p.getProperty("period")))
+                .min_interval(Integer.parseInt(p.getProperty("min_interval")))
+                .split_horizon(Boolean.parseBoolean(p.getProperty("split_horizon")))
+                .holddown(Boolean.parseBoolean(p.getProperty("holddown")))
+                .holddown_time(Integer.parseInt(p.getProperty("holddown_time")))
+                .send_if_changes(Boolean.parseBoolean(p.getProperty("send_if_changes")))
+                .n_workers(Integer.parseInt(p.getProperty("workers", "0")))
+                .batch_size(Integer.parseInt(p.getProperty("batch_size", "" + Receiver.DEFAULT_BATCH_SIZE)))
+                .queue_len(Integer.parseInt(p.getProperty("queue_len", "" + Transmitter.DEFAULT_QUEUE_LEN)))
+                .drop_policy(Transmitter.parse_policy(p.getProperty("drop_policy",
+                        Transmitter.POLICY_NAMES[Transmitter.TAIL_DROP])))
+                .wide_ids(wide_ids)
+                .jitter(Integer.parseInt(p.getProperty("jitter", "" + routing.DEFAULT_JITTER)))
+                .pacing(Integer.parseInt(p.getProperty("pacing", "" + routing.DEFAULT_PACING)))
+                .coalesce(Integer.parseInt(p.getProperty("coalesce", "" + routing.DEFAULT_COALESCE)))
+                .dampening(Integer.parseInt(p.getProperty("dampening", "" + routing.DEFAULT_DAMPENING)))
+                .dual(Boolean.parseBoolean(p.getProperty("dual", "false")))
+                .build();
+    }
+
+    /**
+     * Copy with another name and port, used when the port is busy
+     *
+     * @param name new local name
+     * @param port new port number
+     * @return the new configuration
+     */
+    public RouterConfig with_name(char name, int port) {
+        return copy().name(name).port(port).build();
+    }
+
+    /**
+     * Copy with another send_if_changes value
+     *
+     * @param send_if_changes new value
+     * @return the new configuration
+     */
+    public RouterConfig with_send_if_changes(boolean send_if_changes) {
+        return copy().send_if_changes(send_if_changes).build();
+    }
+
+    /**
+     * Return a string with the configuration
+     *
+     * @return string with the configuration
+     */
+    @Override
+    public String toString() {
+        return "(" + NodeId.toString(name) + " ; " + local_ip + " ; " + port + " ; period=" + period
+                + " ; min_interval=" + min_interval
+                + (split_horizon ? " ; splitHorizon" : "")
+                + (holddown ? (" ; holddown(" + holddown_time + ")") : "")
+                + (dual ? " ; dual" : "")
+                + (send_if_changes ? " ; sendIfChanges" : "") + ")";
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Redes Integradas de Telecomunicacoes I MIEEC 2014/2015
+ *
+ * RouterDaemon.java
+ *
+ * Headless router: runs a RouterNode configured from a file or from the
+ * command line, without any graphical interface
+ */
+package router;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Headless router: runs a RouterNode configured from a properties file
+ * and/or from the command line, without loading AWT or Swing.
+ *
+ * Usage: java -cp gui_t1.jar router.RouterDaemon [-config file] [-key value]...
+ * where key is one of the configuration keys below; command line values
+ * override the file. Neighbours are given as "name;ip;port;distance",
+ * separated by commas. With wide_ids=true, names are 16 bit numbers.
+ * traffic starts the traffic generator, with the settings described in
+ * TrafficGenerator, e.g. "dest=C rate=1000pps size=64 duration=10 delay=5".
+ */
+public class RouterDaemon {
+
+    /** Configuration keys and default values */
+    public final static String[][] DEFAULTS = {
+        {"name", "A"},
+        {"port", "20000"},
+        {"period", "10"},
+        {"min_interval", "1"},
+        {"split_horizon", "false"},
+        {"holddown", "false"},
+        {"holddown_time", "10"},
+        {"send_if_changes", "true"},
+        {"workers", "0"},
+        {"batch_size", "" + Receiver.DEFAULT_BATCH_SIZE},
+        {"queue_len", "" + Transmitter.DEFAULT_QUEUE_LEN},
+        {"drop_policy", Transmitter.POLICY_NAMES[Transmitter.TAIL_DROP]},
+        {"wide_ids", "false"},
+        {"jitter", "" + routing.DEFAULT_JITTER},
+        {"pacing", "" + routing.DEFAULT_PACING},
+        {"coalesce", "" + routing.DEFAULT_COALESCE},
+        {"dampening", "" + routing.DEFAULT_DAMPENING},
+        {"dual", "false"},
+        {"max_neighbours", "16"},
+        {"neighbours", ""},
+        {"log_level", "INFO"},
+        {"stats_period", "0"},
+        {"traffic", ""}
+    };
+
+    /**
+     * Parse the command line arguments, merged with the configuration file
+     *
+     * @param args command line arguments
+     * @return the configuration
+     * @throws IOException error reading the configuration file
+     * @throws IllegalArgumentException invalid arguments
+     */
+    public static Properties parse_args(String[] args) throws IOException {
+        Properties defaults = new Properties();
+        for (String[] kv : DEFAULTS) {
+            defaults.setProperty(kv[0], kv[1]);
+        }
+        Properties cmd = new Properties();
+        String file = null;
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("-") || (i + 1 == args.length)) {
+                throw new IllegalArgumentException("Invalid argument '" + args[i] + "'");
+            }
+            String key = args[i].substring(1);
+            String value = args[++i];
+            if (key.equals("config")) {
+                file = value;
+            } else if (defaults.getProperty(key) == null) {
+                throw new IllegalArgumentException("Unknown option '" + key + "'");
+            } else {
+                cmd.setProperty(key, value);
+            }
+        }
+        Properties conf = new Properties(defaults);
+        if (file != null) {
+            try (Reader in = new FileReader(file)) {
+                conf.load(in);
+            }
+        }
+        conf.putAll(cmd);
+        return conf;
+    }
+
+    /**
+     * Get a log level from its name
+     *
+     * @param name level name
+     * @return the level
+     */
+    public static int parse_level(String name) {
+        for (int i = 0; i < AsyncLog.LEVEL_NAMES.length; i++) {
+            if (AsyncLog.LEVEL_NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Invalid log level '" + name + "'");
+    }
+
+    /**
+     * Add the configured neighbours
+     *
+     * @param node router runtime
+     * @param list neighbours, "name;ip;port;distance" separated by commas
+     */
+    private static void add_neighbours(RouterNode node, String list) {
+        for (String str : list.split(",")) {
+            if (str.trim().isEmpty()) {
+                continue;
+            }
+            neighbour n = new neighbour();
+            if (!n.parseString(str)) {
+                node.Log("Invalid neighbour '" + str + "'\n");
+                continue;
+            }
+            node.add_neig(n.Name(), n.Ip(), n.Port(), n.Dist());
+        }
+    }
+
+    /**
+     * main function of the headless router
+     *
+     * @param args the command line arguments
+     */
+    public static void main(String args[]) {
+        final Properties conf;
+        final AsyncLog log;
+        final RouterNode node;
+        TrafficGenerator.Settings traffic = null;
+        try {
+            conf = parse_args(args);
+            if (!conf.getProperty("traffic").trim().isEmpty()) {
+                traffic = TrafficGenerator.Settings.parse(conf.getProperty("traffic"));
+            }
+            log = new AsyncLog(parse_level(conf.getProperty("log_level")),
+                    AsyncLog.DEFAULT_CAPACITY, new AsyncLog.Sink() {
+                        @Override
+                        public void write(String s) {
+                            System.out.print(s);
+                        }
+                    });
+            log.start();
+            node = new RouterNode(log, Integer.parseInt(conf.getProperty("max_neighbours")), null);
+            if (!node.start(RouterConfig.from_properties(conf), false)) {
+                log.stopRunning();
+                log.join();
+                System.exit(1);
+                return;
+            }
+        } catch (IOException | IllegalArgumentException | InterruptedException e) {
+            System.err.println("Configuration error: " + e.getMessage());
+            System.exit(2);
+            return;
+        }
+        node.Log("Router " + NodeId.toString(node.local_name()) + " started on port "
+                + node.local_port() + "\n");
+        Runtime.getRuntime().addShutdownHook(new Thread("Shutdown") {
+            @Override
+            public void run() {
+                node.write_statistics();
+                node.stop();
+                log.stopRunning();
+                try {
+                    log.join(1000);
+                } catch (InterruptedException e) {
+                    // Exiting anyway
+                }
+            }
+        });
+        add_neighbours(node, conf.getProperty("neighbours"));
+        if (traffic != null) {
+            node.start_traffic(traffic);
+        }
+
+        int stats_period = Integer.parseInt(conf.getProperty("stats_period"));
+        try {
+            while (true) {
+                if (stats_period > 0) {
+                    Thread.sleep(stats_period * 1000L);
+                    node.write_statistics();
+                } else {
+                    Thread.sleep(Long.MAX_VALUE);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Exit
+        }
+    }
+}
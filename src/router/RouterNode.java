@@ -0,0 +1,712 @@
+/**
+ * Redes Integradas de Telecomunicacoes I MIEEC 2014/2015
+ *
+ * RouterNode.java
+ *
+ * Router runtime: socket, neighbour list, routing and packet handling,
+ * independent of the graphical interface
+ */
+package router;
+
+import java.net.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Router runtime: socket, neighbour list, routing and packet handling. It
+ * does not depend on Swing; the graphical interface and the headless daemon
+ * both drive one RouterNode, and are notified of changes through View.
+ */
+public class RouterNode implements Receiver.Handler {
+
+    /**
+     * Receives notifications of state changes, to update a display
+     */
+    public interface View {
+
+        /**
+         * The neighbour list changed
+         */
+        void neighbours_changed();
+
+        /**
+         * The routing table changed
+         *
+         * @param tab the new routing table contents
+         */
+        void routing_changed(Collection<RouteEntry> tab);
+    }
+
+    /** Log writer */
+    private final AsyncLog log;
+    /** Display, or null if headless */
+    private final View view;
+    /** Synchronization lock for control state (neighbours, routing table) */
+    final public Object main_lock = new Object();
+
+    /** Datagram channel, non-blocking */
+    private DatagramChannel ds;
+    /** Receive pipeline */
+    private Receiver receiver;
+    /** Transmit pipeline: output queues for DATA and ROUTE packets */
+    private Transmitter transmitter;
+    /** neighbour list */
+    private final neighbourList neig;
+    /** routing object */
+    private routing route;
+    /** Sequence number for data packets */
+    private int data_seq;
+    /** Current configuration; replaced as a whole on reconfiguration */
+    private volatile RouterConfig config;
+    /** True while the router is active */
+    private volatile boolean active;
+
+    /** Traffic generator, or null if never started */
+    private volatile TrafficGenerator generator;
+
+    /** Statistics counters; ROUTE snt only counts local routing */
+    public final Statistics stats = new Statistics();
+    /** Counters of the generated traffic received */
+    public final TrafficSink traffic_sink = new TrafficSink();
+
+    /**
+     * Constructor
+     *
+     * @param log log writer
+     * @param max_neig maximum number of neighbours
+     * @param view display, or null if headless
+     */
+    public RouterNode(AsyncLog log, int max_neig, View view) {
+        this.log = log;
+        this.view = view;
+        this.neig = new neighbourList(max_neig, this);
+        this.config = null;
+        this.data_seq = 0;
+    }
+
+    /**
+     * Start the router
+     *
+     * @param conf configuration
+     * @param scan if true and the port is busy, tries the next ports and
+     * names
+     * @return true if the router started, false otherwise
+     */
+    public boolean start(RouterConfig conf, boolean scan) {
+        if (active) {
+            Log("Router already active\n");
+            return false;
+        }
+        NodeId.set_wide(conf.wide_ids);
+        char name = conf.name;
+        int port = conf.port;
+        boolean opened = false;
+        do {
+            try {
+                ds = DatagramChannel.open();
+                ds.bind(new InetSocketAddress(port));
+                ds.configureBlocking(false);
+                opened = true;
+            } catch (IOException se) {
+                if (ds != null) {
+                    try {
+                        ds.close();
+                    } catch (IOException e) {
+                    }
+                    ds = null;
+                }
+                if (!scan) {
+                    Log("Cannot open port " + port + ": " + se + "\n");
+                    return false;
+                }
+                // Skip to next name
+                port++;
+                name = NodeId.next(name);
+            }
+        } while (!opened && (name != ' '));
+        if (!opened) {
+            Log("All names occupied\n");
+            return false;
+        }
+        if ((name != conf.name) || (port != conf.port)) {
+            conf = conf.with_name(name, port);
+        }
+        this.config = conf;
+
+        // Start transmit pipeline and routing timer
+        transmitter = new Transmitter(ds, this, conf.queue_len, conf.drop_policy);
+        transmitter.start();
+        route = new routing(conf, neig, this, ds, transmitter);
+        if (!route.start()) {
+            Log("Failed to boot the routing object\n");
+            route = null;
+            stop_transmitter();
+            close_channel();
+            return false;
+        }
+        // Start receive pipeline
+        try {
+            receiver = new Receiver(ds, this, conf.n_workers, conf.batch_size);
+        } catch (IOException e) {
+            Log("Failed to start the receiver: " + e + "\n");
+            route.stop();
+            route = null;
+            stop_transmitter();
+            close_channel();
+            return false;
+        }
+        active = true;
+        receiver.start();
+        zero_statistics();
+        return true;
+    }
+
+    /**
+     * Stops the router
+     */
+    public void stop() {
+        boolean was_active = active;
+        active = false;
+        stop_traffic();
+        if (receiver != null) {
+            receiver.stopRunning();
+            receiver = null;
+        }
+        if (route != null) {
+            route.stop();
+            route = null;
+        }
+        stop_transmitter();
+        if (ds != null) {
+            neig.clear_BYE(ds);
+            neighbours_changed();
+            close_channel();
+        }
+        if (was_active) {
+            Log("Router " + NodeId.toString(config.name) + " stopped\n");
+        }
+    }
+
+    /**
+     * Stop the transmit pipeline, discarding the queued packets
+     */
+    private void stop_transmitter() {
+        if (transmitter != null) {
+            transmitter.stopRunning();
+            transmitter = null;
+        }
+    }
+
+    /**
+     * Close the datagram channel
+     */
+    private void close_channel() {
+        try {
+            ds.close();
+        } catch (IOException e) {
+            Log("Error closing socket: " + e + "\n");
+        }
+        ds = null;
+    }
+
+    /**
+     * Test if the router is active
+     *
+     * @return true if active
+     */
+    public boolean is_active() {
+        return active;
+    }
+
+    /**
+     * Get the current configuration
+     *
+     * @return the configuration, or null if never started
+     */
+    public RouterConfig config() {
+        return config;
+    }
+
+    /**
+     * Get the local port number
+     *
+     * @return port number
+     */
+    public int local_port() {
+        return config.port;
+    }
+
+    /**
+     * Get the neighbour list
+     *
+     * @return neighbour list
+     */
+    public neighbourList neighbours() {
+        return neig;
+    }
+
+    /**
+     * Test if SndIfChanges is selected
+     *
+     * @return true if SndIfChanges is selected
+     */
+    public boolean is_sendIfChanges() {
+        RouterConfig conf = config;
+        return (conf != null) && conf.send_if_changes;
+    }
+
+    /**
+     * Define if ROUTE packets are sent when the network changes
+     *
+     * @param sendIfChanges new value
+     */
+    public synchronized void set_sendIfChanges(boolean sendIfChanges) {
+        if (config != null) {
+            config = config.with_send_if_changes(sendIfChanges);
+        }
+    }
+
+    /**
+     * Get the node name
+     *
+     * @return local name (address)
+     */
+    public char local_name() {
+        RouterConfig conf = config;
+        return (conf == null) ? ' ' : conf.name;
+    }
+
+    /**
+     * Test if nm is the local name
+     *
+     * @param nm test name
+     * @return true if names are equal, false otherwise
+     */
+    public boolean is_local_name(char nm) {
+        return (nm == config.name);
+    }
+
+    /* ********************************************************************* */
+    /* Operations requested by the user                                      */
+    /* ********************************************************************* */
+    /**
+     * Add a new neighbour
+     *
+     * @param name neighbour's name
+     * @param ip ip address
+     * @param port port number
+     * @param distance distance
+     * @return true if added, false otherwise
+     */
+    public boolean add_neig(char name, String ip, int port, int distance) {
+        if (!active) {
+            Log("Router is not active\n");
+            return false;
+        }
+        if (!NodeId.valid(name)) {
+            Log("Invalid name '" + NodeId.toString(name) + "'\n");
+            return false;
+        }
+        if (neig.locate_neig(name) != null) {
+            Log("Duplicate name\n");
+            return false;
+        }
+        synchronized (main_lock) {
+            if (!neig.add_neig(name, ip, port, distance, ds)) {
+                return false;
+            }
+            neighbours_changed();
+            if (config.send_if_changes) {
+                route.network_changed(true);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Change the distance to a neighbour
+     *
+     * @param name neighbour's name
+     * @param ip ip address
+     * @param port port number
+     * @param distance distance
+     * @return true if modified, false otherwise
+     */
+    public boolean update_neig(char name, String ip, int port, int distance) {
+        if (!active) {
+            Log("Router is not active\n");
+            return false;
+        }
+        if (neig.locate_neig(name) == null) {
+            Log("Invalid neighbour\n");
+            return false;
+        }
+        synchronized (main_lock) {
+            if (!neig.update_neig(name, ip, port, distance)) {
+                return false;
+            }
+            neighbours_changed();
+            if (config.send_if_changes) {
+                route.network_changed(true);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove a neighbour, sending a BYE packet
+     *
+     * @param name neighbour's name
+     * @return true if removed, false otherwise
+     */
+    public boolean del_neig(char name) {
+        if (!active) {
+            Log("Router is not active\n");
+            return false;
+        }
+        if (neig.locate_neig(name) == null) {
+            Log("Invalid neighbour\n");
+            return false;
+        }
+        synchronized (main_lock) {
+            if (!neig.del_neig(name, true, ds)) {
+                return false;
+            }
+            neighbours_changed();
+            if (config.send_if_changes) {
+                route.network_changed(true);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Send a DATA packet; messages longer than 255 characters are sent as
+     * a fragmented binary message, encoded in UTF-8
+     *
+     * @param dest destination address
+     * @param msg message contents
+     */
+    public void send_data(char dest, String msg) {
+        if (msg.length() > 255) {
+            send_data(dest, msg.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            return;
+        }
+        if (!active) {
+            Log("Router is not active\n");
+            return;
+        }
+        int seq;
+        synchronized (this) {
+            seq = ++data_seq;
+        }
+        route.send_data_packet(config.name, dest, seq, msg, "");
+    }
+
+    /**
+     * Send a binary DATA message, in fragments
+     *
+     * @param dest destination address
+     * @param data message contents, up to router.MAX_PAYLOAD bytes
+     */
+    public void send_data(char dest, byte[] data) {
+        if (!active) {
+            Log("Router is not active\n");
+            return;
+        }
+        if ((data.length == 0) || (data.length > router.MAX_PAYLOAD)) {
+            Log("Invalid message length (" + data.length + ")\n");
+            return;
+        }
+        int seq;
+        synchronized (this) {
+            seq = ++data_seq;
+        }
+        if (!route.send_data_fragments(config.name, dest, seq, data)) {
+            Log("DATA message discarded: no route or output queue full\n");
+        }
+    }
+
+    /**
+     * Start the traffic generator, stopping the previous one
+     *
+     * @param set generator settings
+     */
+    public synchronized void start_traffic(TrafficGenerator.Settings set) {
+        if (!active) {
+            Log("Router is not active\n");
+            return;
+        }
+        stop_traffic();
+        generator = new TrafficGenerator(this, route, config.name, set);
+        generator.start();
+    }
+
+    /**
+     * Stop the traffic generator, if running
+     *
+     * @return true if it was running
+     */
+    public synchronized boolean stop_traffic() {
+        TrafficGenerator g = generator;
+        if ((g == null) || !g.isAlive()) {
+            return false;
+        }
+        g.stopRunning();
+        try {
+            g.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    /* ********************************************************************* */
+    /* Packet handling                                                       */
+    /* ********************************************************************* */
+    /**
+     * Get the lock used by the receive pipeline for control packets
+     *
+     * @return the lock object
+     */
+    @Override
+    public Object control_lock() {
+        return main_lock;
+    }
+
+    /**
+     * handle incoming packets, decoding and processing HELLO and BYE packets;
+     * called by the receive pipeline workers, holding main_lock for control
+     * packets and without locking for DATA packets
+     *
+     * @param from sender socket address
+     * @param buf buffer with the packet, positioned at the first byte
+     * @return true if packet was processed with success, false otherwise
+     */
+    @Override
+    public boolean process_packet(InetSocketAddress from, ByteBuffer buf) {
+        byte code;
+        char sender;
+        int len = buf.remaining();
+        if (len < 3) {
+            stats.received((byte) 0, ' ', len);
+            Log("Packet too short\n");
+            return false;
+        }
+        try {
+            code = buf.get();          // read code
+            sender = buf.getChar();    // read sender id
+            // DATA packets are counted by routing, for the previous hop, once
+            // the path is validated; HELLO after it may have added the neighbour
+            if ((code != router.PKT_HELLO) && (Statistics.type_of(code) != Statistics.DATA)) {
+                stats.received(code, sender, len);
+            }
+
+            switch (code) {
+                case router.PKT_HELLO:
+                    try {
+                        Log("PKT_HELLO(" + NodeId.toString(sender) + ")\n");
+                        // Update values
+                        int dist = buf.getInt();
+                        if (buf.hasRemaining()) {
+                            Log("Packet too long\n");
+                            return false;
+                        }
+                        if (active) {
+                            String ip = sender_ip(from, config);
+                            if (ip == null) {
+                                return false;
+                            }
+                            boolean ok = neig.add_neig(sender, ip, from.getPort(),
+                                    dist, ds);
+                            if (ok) {
+                                neighbours_changed();
+                                if (config.send_if_changes) {
+                                    route.network_changed(true);
+                                }
+                            }
+                        }
+                    } finally {
+                        stats.received(code, sender, len);
+                    }
+                    break;
+
+                case router.PKT_BYE:
+                    Log("PKT_BYE(" + NodeId.toString(sender) + ")\n");
+                    if (buf.hasRemaining()) {
+                        Log("Packet too long\n");
+                        return false;
+                    }
+                    if (active) {
+                        boolean ok = neig.del_neig(sender, false, ds);
+                        if (ok) {
+                            neighbours_changed();
+                            if (config.send_if_changes) {
+                                route.network_changed(true);
+                            }
+                        }
+                    }
+                    break;
+
+                case router.PKT_ROUTE:
+                case router.PKT_ROUTE_DELTA:
+                case router.PKT_QUERY:
+                case router.PKT_REPLY:
+                    return route.process_ROUTE(sender, from, buf, code);
+
+                case router.PKT_DATA:
+                    return route.process_DATA(sender, from, buf);
+
+                case router.PKT_DATA_FRAG:
+                    return route.process_DATA_FRAG(sender, from, buf);
+
+                default:
+                    Log("Invalid packet code (" + code + ")\n");
+                    return false;
+            }
+        } catch (BufferUnderflowException e) {
+            Log("Packet too short\n");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the IP address of a sender, replacing the loopback by the local
+     * address; only called for control packets
+     *
+     * @param from sender socket address
+     * @param conf current configuration
+     * @return the IP address string
+     */
+    private static String sender_ip(InetSocketAddress from, RouterConfig conf) {
+        InetAddress addr = from.getAddress();
+        if (addr.isLoopbackAddress()) {
+            return conf.local_ip;
+        }
+        return addr.getHostAddress();  // Get sender address
+    }
+
+    /* ********************************************************************* */
+    /* View notifications                                                    */
+    /* ********************************************************************* */
+    /**
+     * Rebuild the forwarding table and notify the view that the neighbour
+     * list changed
+     */
+    public void neighbours_changed() {
+        routing route = this.route;
+        if (route != null) {
+            route.update_fib();
+        }
+        if (view != null) {
+            view.neighbours_changed();
+        }
+    }
+
+    /**
+     * Notify the view that the routing table changed
+     *
+     * @param tab the new routing table contents
+     */
+    public void routing_changed(Collection<RouteEntry> tab) {
+        if (view != null) {
+            view.routing_changed(tab);
+        }
+    }
+
+    /* ********************************************************************* */
+    /* Log and statistics                                                    */
+    /* ********************************************************************* */
+    /**
+     * Write messages to the log, at INFO level
+     *
+     * @param s message to write
+     */
+    @Override
+    public void Log(String s) {
+        log.log(AsyncLog.INFO, s);
+    }
+
+    /**
+     * Write messages to the log
+     *
+     * @param level log level
+     * @param s message to write
+     */
+    public void Log(int level, String s) {
+        log.log(level, s);
+    }
+
+    /**
+     * Test if a log level is enabled; test it before formatting messages
+     *
+     * @param level log level
+     * @return true if enabled
+     */
+    public boolean Log_on(int level) {
+        return log.on(level);
+    }
+
+    /**
+     * Get the log writer
+     *
+     * @return the log writer
+     */
+    public AsyncLog log() {
+        return log;
+    }
+
+    /**
+     * Clear statistics
+     */
+    public void zero_statistics() {
+        stats.reset();
+        traffic_sink.reset();
+        routing route = this.route;
+        if (route != null) {
+            route.reassembly.reset();
+        }
+        Transmitter tx = transmitter;
+        if (tx != null) {
+            tx.reset();
+        }
+    }
+
+    /**
+     * Get a snapshot of the statistics counters
+     *
+     * @return the snapshot
+     */
+    public Statistics.Snapshot statistics() {
+        return stats.snapshot();
+    }
+
+    /**
+     * Write statistics
+     */
+    public void write_statistics() {
+        Statistics.Snapshot st = stats.snapshot();
+        Log("****Statistics**********************************************\n"
+                + "HELLO snt:" + st.packets(Statistics.SND, Statistics.HELLO)
+                + " rcv:" + st.packets(Statistics.RCV, Statistics.HELLO)
+                + "; BYE snt:" + st.packets(Statistics.SND, Statistics.BYE)
+                + " rcv:" + st.packets(Statistics.RCV, Statistics.BYE)
+                + "\nROUTE snt:" + st.packets(Statistics.SND, Statistics.ROUTE)
+                + " rcv:" + st.packets(Statistics.RCV, Statistics.ROUTE)
+                + "; DATA snt:" + st.packets(Statistics.SND, Statistics.DATA)
+                + " rcv:" + st.packets(Statistics.RCV, Statistics.DATA)
+                + "; Invalid rcv:" + st.packets(Statistics.RCV, Statistics.INVALID) + "\n"
+                + st
+                + (receiver != null ? receiver.batch_statistics() + "\n" : "")
+                + (transmitter != null ? transmitter.queue_statistics() : "")
+                + (route != null ? route.statistics() + "\n"
+                        + route.reassembly.statistics() + "\n" : "")
+                + (generator != null ? generator.statistics() + "\n" : "")
+                + traffic_sink.statistics()
+                + "Log level:" + AsyncLog.LEVEL_NAMES[log.level()] + " dropped:" + log.dropped() + "\n"
+                + "************************************************************\n");
+    }
+}
@@ -0,0 +1,286 @@
+/**
+ * Redes Integradas de Telecomunicacoes I MIEEC 2014/2015
+ *
+ * Statistics.java
+ *
+ * Packet and byte counters, per packet type and per neighbour
+ */
+package router;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Packet and byte counters, per direction, packet type and neighbour.
+ * Counters are striped 64-bit adders, so any thread can update them without
+ * losing counts or contending on a lock; snapshot() reads them without
+ * stopping the threads that update them.
+ */
+public class Statistics {
+
+    /** Directions */
+    public final static int SND = 0;
+    public final static int RCV = 1;
+    /** Packet types */
+    public final static int HELLO = 0;
+    public final static int BYE = 1;
+    public final static int ROUTE = 2;
+    public final static int DATA = 3;
+    public final static int INVALID = 4;
+    public final static int N_TYPES = 5;
+    /** Type names, indexed by type */
+    public final static String[] TYPE_NAMES = {"HELLO", "BYE", "ROUTE", "DATA", "Invalid"};
+
+    /**
+     * Counters for one neighbour, or for the totals
+     */
+    private static final class Counters {
+
+        final LongAdder[][] pkts = new LongAdder[2][N_TYPES];
+        final LongAdder[][] bytes = new LongAdder[2][N_TYPES];
+
+        Counters() {
+            for (int d = 0; d < 2; d++) {
+                for (int t = 0; t < N_TYPES; t++) {
+                    pkts[d][t] = new LongAdder();
+                    bytes[d][t] = new LongAdder();
+                }
+            }
+        }
+
+        void add(int dir, int type, int len) {
+            pkts[dir][type].increment();
+            bytes[dir][type].add(len);
+        }
+
+        void reset() {
+            for (int d = 0; d < 2; d++) {
+                for (int t = 0; t < N_TYPES; t++) {
+                    pkts[d][t].reset();
+                    bytes[d][t].reset();
+                }
+            }
+        }
+
+        long[][][] read() {
+            long[][][] v = new long[2][2][N_TYPES];
+            for (int d = 0; d < 2; d++) {
+                for (int t = 0; t < N_TYPES; t++) {
+                    v[0][d][t] = pkts[d][t].sum();
+                    v[1][d][t] = bytes[d][t].sum();
+                }
+            }
+            return v;
+        }
+    }
+
+    /**
+     * Immutable copy of the counters
+     */
+    public static final class Snapshot {
+
+        /** Time when the snapshot was taken [ms] */
+        public final long time;
+        /** [0=packets,1=bytes][direction][type] */
+        private final long[][][] total;
+        private final TreeMap<Character, long[][][]> neigh;
+
+        private Snapshot(long[][][] total, TreeMap<Character, long[][][]> neigh) {
+            this.time = System.currentTimeMillis();
+            this.total = total;
+            this.neigh = neigh;
+        }
+
+        /**
+         * Get the total number of packets
+         *
+         * @param dir direction (SND or RCV)
+         * @param type packet type
+         * @return number of packets
+         */
+        public long packets(int dir, int type) {
+            return total[0][dir][type];
+        }
+
+        /**
+         * Get the total number of bytes
+         *
+         * @param dir direction (SND or RCV)
+         * @param type packet type
+         * @return number of bytes
+         */
+        public long bytes(int dir, int type) {
+            return total[1][dir][type];
+        }
+
+        /**
+         * Get the number of packets exchanged with one neighbour
+         *
+         * @param name neighbour name
+         * @param dir direction (SND or RCV)
+         * @param type packet type
+         * @return number of packets
+         */
+        public long packets(char name, int dir, int type) {
+            long[][][] v = neigh.get(name);
+            return (v == null) ? 0 : v[0][dir][type];
+        }
+
+        /**
+         * Get the number of bytes exchanged with one neighbour
+         *
+         * @param name neighbour name
+         * @param dir direction (SND or RCV)
+         * @param type packet type
+         * @return number of bytes
+         */
+        public long bytes(char name, int dir, int type) {
+            long[][][] v = neigh.get(name);
+            return (v == null) ? 0 : v[1][dir][type];
+        }
+
+        /**
+         * Get the names of the neighbours with counters
+         *
+         * @return sorted set of names
+         */
+        public Set<Character> neighbours() {
+            return neigh.keySet();
+        }
+
+        /**
+         * Return a string with the snapshot contents
+         *
+         * @return string with the counters
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            format(sb, "Total", total);
+            for (Map.Entry<Character, long[][][]> e : neigh.entrySet()) {
+                format(sb, "Neig " + NodeId.toString(e.getKey()), e.getValue());
+            }
+            return sb.toString();
+        }
+
+        private static void format(StringBuilder sb, String title, long[][][] v) {
+            sb.append(title).append(':');
+            for (int t = 0; t < N_TYPES; t++) {
+                if (v[0][SND][t] + v[0][RCV][t] == 0) {
+                    continue;
+                }
+                sb.append(' ').append(TYPE_NAMES[t])
+                        .append(" snt:").append(v[0][SND][t]).append('/').append(v[1][SND][t]).append('B')
+                        .append(" rcv:").append(v[0][RCV][t]).append('/').append(v[1][RCV][t]).append('B')
+                        .append(';');
+            }
+            sb.append('\n');
+        }
+    }
+
+    private final Counters total = new Counters();
+    private final ConcurrentHashMap<Character, Counters> neigh = new ConcurrentHashMap<>();
+
+    /**
+     * Convert a packet code to a counter type
+     *
+     * @param code packet code
+     * @return counter type
+     */
+    public static int type_of(byte code) {
+        switch (code) {
+            case router.PKT_HELLO:
+                return HELLO;
+            case router.PKT_BYE:
+                return BYE;
+            case router.PKT_ROUTE:
+            case router.PKT_ROUTE_DELTA:
+            case router.PKT_QUERY:
+            case router.PKT_REPLY:
+                return ROUTE;
+            case router.PKT_DATA:
+            case router.PKT_DATA_FRAG:
+                return DATA;
+            default:
+                return INVALID;
+        }
+    }
+
+    /**
+     * Create the counters of a neighbour, if they do not exist; only the
+     * names added here get their own counters, so packets with invalid or
+     * unknown names cannot add names
+     *
+     * @param name neighbour name
+     */
+    public void add_neighbour(char name) {
+        if (!neigh.containsKey(name)) {
+            neigh.putIfAbsent(name, new Counters());
+        }
+    }
+
+    /**
+     * Count a packet
+     *
+     * @param dir direction (SND or RCV)
+     * @param code packet code
+     * @param name neighbour name, or ' ' if unknown; a name that was not
+     * added with add_neighbour only counts in the totals
+     * @param len packet length
+     */
+    public void count(int dir, byte code, char name, int len) {
+        int type = type_of(code);
+        total.add(dir, type, len);
+        Counters c = neigh.get(name);
+        if (c != null) {
+            c.add(dir, type, len);
+        }
+    }
+
+    /**
+     * Count a packet sent
+     *
+     * @param code packet code
+     * @param name neighbour name, or ' ' if unknown
+     * @param len packet length
+     */
+    public void sent(byte code, char name, int len) {
+        count(SND, code, name, len);
+    }
+
+    /**
+     * Count a packet received
+     *
+     * @param code packet code
+     * @param name neighbour name, or ' ' if unknown
+     * @param len packet length
+     */
+    public void received(byte code, char name, int len) {
+        count(RCV, code, name, len);
+    }
+
+    /**
+     * Clear all the counters
+     */
+    public void reset() {
+        total.reset();
+        for (Counters c : neigh.values()) {
+            c.reset();
+        }
+    }
+
+    /**
+     * Read all the counters; each value is exact at some instant during the
+     * call, without blocking the threads that update them
+     *
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        TreeMap<Character, long[][][]> map = new TreeMap<>();
+        for (Map.Entry<Character, Counters> e : neigh.entrySet()) {
+            map.put(e.getKey(), e.getValue().read());
+        }
+        return new Snapshot(total.read(), map);
+    }
+}
@@ -0,0 +1,267 @@
+/**
+ * Redes Integradas de Telecomunicacoes I MIEEC 2014/2015
+ *
+ * TimerWheel.java
+ *
+ * Hashed timing wheel: the control-plane timer thread of the router
+ */
+package router;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Hashed timing wheel, run by one thread. Time advances in ticks; a timeout
+ * is placed in the slot of its expiry tick, with the number of whole turns
+ * of the wheel left, so each tick only visits one slot, whatever the number
+ * of timers pending. Timeouts run on the wheel thread, in expiry order
+ * within a tick, at most one tick late, and each one runs at most once.
+ *
+ * New and cancelled timeouts are handed to the wheel thread through queues,
+ * so schedule and cancel never block and can be called from any thread,
+ * including a running timeout.
+ */
+public class TimerWheel extends Thread {
+
+    /** Default tick [ms]; short enough to pace the ROUTE packets */
+    public final static long DEFAULT_TICK = 10;
+    /** Default number of slots; one turn is 10.24 s with the default tick */
+    public final static int DEFAULT_SLOTS = 1024;
+    /** Timeout states */
+    private final static int PENDING = 0;
+    private final static int RUN = 1;
+    private final static int CANCELLED = 2;
+
+    /**
+     * Pending timeout, returned by schedule
+     */
+    public static final class Timeout {
+
+        private final Runnable task;
+        /** Expiry tick */
+        private final long deadline;
+        /** Whole turns of the wheel left */
+        private long rounds;
+        /** PENDING, RUN or CANCELLED */
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        /** Slot list links; only used by the wheel thread */
+        private Timeout prev, next;
+        private Slot slot;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Test if the timeout is still waiting to run
+         *
+         * @return true if pending
+         */
+        public boolean is_pending() {
+            return state.get() == PENDING;
+        }
+    }
+
+    /**
+     * Doubly linked list of the timeouts placed in one slot
+     */
+    private static final class Slot {
+
+        Timeout head, tail;
+
+        void add(Timeout t) {
+            t.slot = this;
+            t.prev = tail;
+            t.next = null;
+            if (tail == null) {
+                head = t;
+            } else {
+                tail.next = t;
+            }
+            tail = t;
+        }
+
+        void remove(Timeout t) {
+            if (t.prev == null) {
+                head = t.next;
+            } else {
+                t.prev.next = t.next;
+            }
+            if (t.next == null) {
+                tail = t.prev;
+            } else {
+                t.next.prev = t.prev;
+            }
+            t.prev = t.next = null;
+            t.slot = null;
+        }
+    }
+
+    private volatile boolean keepRunning = true;
+    private final RouterNode node;
+    /** Tick [ns] */
+    private final long tick;
+    private final Slot[] wheel;
+    private final int mask;
+    /** Time of tick 0 [ns] */
+    private final long start = System.nanoTime();
+    /** Ticks processed; only written by the wheel thread */
+    private volatile long current;
+    /** Timeouts scheduled, not yet placed in the wheel */
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    /** Timeouts cancelled, not yet removed from the wheel */
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+    /* Counters */
+    private final LongAdder scheduled = new LongAdder();
+    private final LongAdder cancels = new LongAdder();
+    private volatile long fired;
+    private volatile long late_max;
+    private volatile int pending;
+
+    /**
+     * Constructor
+     *
+     * @param name thread name
+     * @param node router runtime, logs the errors
+     * @param tick tick [ms]
+     * @param slots number of slots, rounded up to a power of 2
+     */
+    public TimerWheel(String name, RouterNode node, long tick, int slots) {
+        super(name);
+        setDaemon(true);
+        this.node = node;
+        this.tick = Math.max(1, tick) * 1000000L;
+        int n = 1;
+        while (n < slots) {
+            n <<= 1;
+        }
+        wheel = new Slot[n];
+        for (int i = 0; i < n; i++) {
+            wheel[i] = new Slot();
+        }
+        mask = n - 1;
+    }
+
+    /**
+     * Schedule a task
+     *
+     * @param task task, run on the wheel thread
+     * @param delay delay [ms]; 0 runs it on the next tick
+     * @return the timeout, which can be cancelled
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        long now = System.nanoTime() - start;
+        // Round up, so it never runs early
+        long deadline = (now + Math.max(0, delay) * 1000000L + tick - 1) / tick;
+        Timeout t = new Timeout(task, deadline);
+        added.offer(t);
+        scheduled.increment();
+        return t;
+    }
+
+    /**
+     * Cancel a timeout, if it did not run yet
+     *
+     * @param t timeout, or null
+     * @return true if cancelled, false if it already ran or was cancelled
+     */
+    public boolean cancel(Timeout t) {
+        if ((t == null) || !t.state.compareAndSet(PENDING, CANCELLED)) {
+            return false;
+        }
+        cancelled.offer(t);
+        cancels.increment();
+        return true;
+    }
+
+    /**
+     * Place the new timeouts in the wheel, and remove the cancelled ones
+     */
+    private void transfer() {
+        Timeout t;
+        while ((t = cancelled.poll()) != null) {
+            if (t.slot != null) {
+                t.slot.remove(t);
+                pending--;
+            }
+        }
+        while ((t = added.poll()) != null) {
+            if (t.state.get() != PENDING) {
+                continue;
+            }
+            // A deadline already reached goes in the next slot
+            long at = Math.max(t.deadline, current + 1);
+            t.rounds = (at - current - 1) >> Integer.numberOfTrailingZeros(wheel.length);
+            wheel[(int) (at & mask)].add(t);
+            pending++;
+        }
+    }
+
+    /**
+     * Run the timeouts of one tick
+     *
+     * @param now tick number
+     */
+    private void expire(long now) {
+        Slot s = wheel[(int) (now & mask)];
+        Timeout t = s.head;
+        while (t != null) {
+            Timeout next = t.next;
+            if (t.rounds > 0) {
+                t.rounds--;
+            } else {
+                s.remove(t);
+                pending--;
+                if (t.state.compareAndSet(PENDING, RUN)) {
+                    fired++;
+                    if (now - t.deadline > late_max) {
+                        late_max = now - t.deadline;
+                    }
+                    try {
+                        t.task.run();
+                    } catch (RuntimeException e) {
+                        node.Log("Error in timer task: " + e + "\n");
+                    }
+                }
+            }
+            t = next;
+        }
+    }
+
+    // Thread main function
+    @Override
+    public void run() {
+        while (keepRunning) {
+            long next = start + (current + 1) * tick;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            transfer();
+            current++;
+            expire(current);
+        }
+    }
+
+    // Stops thread; pending timeouts are discarded
+    public void stopRunning() {
+        keepRunning = false;
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Return a string with the wheel counters
+     *
+     * @return string with the counters
+     */
+    public String statistics() {
+        return "Timers: tick:" + (tick / 1000000L) + "ms slots:" + wheel.length
+                + " pending:" + pending + " scheduled:" + scheduled.sum()
+                + " fired:" + fired + " cancelled:" + cancels.sum()
+                + " late max:" + late_max + " ticks";
+    }
+}
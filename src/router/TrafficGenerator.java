@@ -0,0 +1,366 @@
+/**
+ * Redes Integradas de Telecomunicacoes I MIEEC 2014/2015
+ *
+ * TrafficGenerator.java
+ *
+ * DATA traffic generator, for throughput and loss measurements
+ */
+package router;
+
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * DATA traffic generator. Sends messages of a fixed size to a weighted mix
+ * of destinations, at a fixed rate, in bursts of back-to-back messages,
+ * for a given duration. Messages up to 255 bytes are sent as DATA packets,
+ * longer ones in fragments. Each message starts with MAGIC and the run
+ * number, and the sequence numbers count from 1 for each destination, so
+ * the TrafficSink at the destination measures the rate, loss and
+ * reordering.
+ *
+ * The settings are a string of key=value pairs separated by spaces, e.g.
+ * "dest=B:2,C rate=1000pps size=64 duration=10 burst=1 delay=0", where
+ * dest lists the destinations with optional weights, rate is in pps, kbps
+ * or Mbps (0 sends as fast as possible), duration is in seconds (0 runs
+ * until stopped) and delay is the wait before starting, in seconds.
+ */
+public class TrafficGenerator extends Thread {
+
+    /** First bytes of a generated message */
+    public final static byte[] MAGIC = "#TG".getBytes(StandardCharsets.US_ASCII);
+    /** Length of the message header: MAGIC and the run number */
+    public final static int HEADER_LEN = MAGIC.length + 4;
+    /** Maximum message length sent in one DATA packet */
+    private final static int MAX_SINGLE = 255;
+    /** A backlog longer than this is not recovered [ns] */
+    private final static long MAX_LATE = 1000000000L;
+    /** Wait after a message is dropped, so a full queue is not polled [ns] */
+    private final static long DROP_BACKOFF = 100000L;
+
+    /**
+     * Generator settings
+     */
+    public static final class Settings {
+
+        /** Destinations */
+        public final char[] dests;
+        /** Destination weights */
+        public final int[] weights;
+        /** Message rate [msg/s]; 0 is as fast as possible */
+        public final double rate;
+        /** Message length [bytes] */
+        public final int size;
+        /** Duration [ms]; 0 runs until stopped */
+        public final long duration;
+        /** Number of messages sent back-to-back */
+        public final int burst;
+        /** Wait before starting [ms] */
+        public final long delay;
+        /** Settings string */
+        private final String text;
+
+        private Settings(char[] dests, int[] weights, double rate, int size,
+                long duration, int burst, long delay, String text) {
+            this.dests = dests;
+            this.weights = weights;
+            this.rate = rate;
+            this.size = size;
+            this.duration = duration;
+            this.burst = burst;
+            this.delay = delay;
+            this.text = text;
+        }
+
+        /**
+         * Parse the settings
+         *
+         * @param s settings string
+         * @return the settings
+         * @throws IllegalArgumentException invalid settings
+         */
+        public static Settings parse(String s) {
+            String dest = null;
+            String rate = "100pps";
+            int size = 64;
+            double duration = 10;
+            int burst = 1;
+            double delay = 0;
+            for (String kv : s.trim().split("\\s+")) {
+                int i = kv.indexOf('=');
+                if (i <= 0) {
+                    throw new IllegalArgumentException("Invalid traffic setting '" + kv + "'");
+                }
+                String key = kv.substring(0, i);
+                String value = kv.substring(i + 1);
+                try {
+                    switch (key) {
+                        case "dest":
+                            dest = value;
+                            break;
+                        case "rate":
+                            rate = value;
+                            break;
+                        case "size":
+                            size = Integer.parseInt(value);
+                            break;
+                        case "duration":
+                            duration = Double.parseDouble(value);
+                            break;
+                        case "burst":
+                            burst = Integer.parseInt(value);
+                            break;
+                        case "delay":
+                            delay = Double.parseDouble(value);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown traffic setting '" + key + "'");
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid traffic setting '" + kv + "'");
+                }
+            }
+            if (dest == null) {
+                throw new IllegalArgumentException("No traffic destination");
+            }
+            if ((size < HEADER_LEN) || (size > router.MAX_PAYLOAD)) {
+                throw new IllegalArgumentException("Invalid traffic size " + size
+                        + " (" + HEADER_LEN + ".." + router.MAX_PAYLOAD + ")");
+            }
+            if ((burst < 1) || (duration < 0) || (delay < 0)) {
+                throw new IllegalArgumentException("Invalid traffic burst, duration or delay");
+            }
+            String[] list = dest.split(",");
+            char[] dests = new char[list.length];
+            int[] weights = new int[list.length];
+            for (int i = 0; i < list.length; i++) {
+                String[] d = list[i].split(":");
+                dests[i] = NodeId.parse(d[0]);
+                weights[i] = 1;
+                try {
+                    if (d.length == 2) {
+                        weights[i] = Integer.parseInt(d[1]);
+                    }
+                } catch (NumberFormatException e) {
+                    weights[i] = 0;
+                }
+                if ((dests[i] == ' ') || (d.length > 2) || (weights[i] < 1)) {
+                    throw new IllegalArgumentException("Invalid traffic destination '" + list[i] + "'");
+                }
+            }
+            return new Settings(dests, weights, parse_rate(rate, size), size,
+                    (long) (duration * 1000), burst, (long) (delay * 1000), s.trim());
+        }
+
+        /**
+         * Parse a rate, in messages or bits per second
+         *
+         * @param s rate with unit: pps (the default), kbps or Mbps
+         * @param size message length [bytes]
+         * @return the rate [msg/s]
+         * @throws IllegalArgumentException invalid rate
+         */
+        private static double parse_rate(String s, int size) {
+            String v = s.toLowerCase();
+            double scale = 1;
+            if (v.endsWith("mbps")) {
+                scale = 1e6 / 8 / size;
+                v = v.substring(0, v.length() - 4);
+            } else if (v.endsWith("kbps")) {
+                scale = 1e3 / 8 / size;
+                v = v.substring(0, v.length() - 4);
+            } else if (v.endsWith("pps")) {
+                v = v.substring(0, v.length() - 3);
+            }
+            try {
+                double r = Double.parseDouble(v);
+                if (r < 0) {
+                    throw new NumberFormatException();
+                }
+                return r * scale;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid traffic rate '" + s + "'");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    private volatile boolean keepRunning = true;
+    private final RouterNode node;
+    private final routing route;
+    private final char local_name;
+    private final Settings set;
+    /** Run number, tells the sink a new run started */
+    private final int run = new Random().nextInt();
+    /** Next sequence number, per destination */
+    private final int[] seq;
+    /** Smooth weighted round-robin state, per destination */
+    private final int[] current;
+    private final int total_weight;
+    /** Packet template for messages sent in one DATA packet */
+    private final ByteBuffer packet;
+    /** Message contents for messages sent in fragments */
+    private final byte[] message;
+
+    /* Counters; only written by the generator thread */
+    private volatile long sent;
+    private volatile long dropped;
+    private volatile long start_time;
+    private volatile long end_time;
+
+    /**
+     * Constructor
+     *
+     * @param node router runtime, for the log
+     * @param route routing object, sends the messages
+     * @param local_name local name, the sender
+     * @param set settings
+     */
+    public TrafficGenerator(RouterNode node, routing route, char local_name, Settings set) {
+        super("Traffic generator");
+        setDaemon(true);
+        this.node = node;
+        this.route = route;
+        this.local_name = local_name;
+        this.set = set;
+        this.seq = new int[set.dests.length];
+        this.current = new int[set.dests.length];
+        int w = 0;
+        for (int weight : set.weights) {
+            w += weight;
+        }
+        this.total_weight = w;
+        byte[] body = new byte[set.size];
+        Arrays.fill(body, (byte) '.');
+        ByteBuffer.wrap(body).put(MAGIC).putInt(run);
+        if (set.size <= MAX_SINGLE) {
+            int n = NodeId.path_bytes();
+            packet = ByteBuffer.allocate(1 + 2 + 2 + 4 + 2 + set.size + 1 + n);
+            packet.put(router.PKT_DATA).putChar(local_name).putChar(' ').putInt(0)
+                    .putShort((short) set.size).put(body).put((byte) 1);
+            if (n == 2) {
+                packet.putChar(local_name);
+            } else {
+                packet.put((byte) local_name);
+            }
+            message = null;
+        } else {
+            packet = null;
+            message = body;
+        }
+    }
+
+    /**
+     * Select the next destination, by smooth weighted round-robin
+     *
+     * @return destination index
+     */
+    private int next_dest() {
+        int best = 0;
+        for (int i = 0; i < current.length; i++) {
+            current[i] += set.weights[i];
+            if (current[i] > current[best]) {
+                best = i;
+            }
+        }
+        current[best] -= total_weight;
+        return best;
+    }
+
+    /**
+     * Send one message
+     *
+     * @return true if sent, false if dropped
+     */
+    private boolean send_one() {
+        int d = next_dest();
+        char dest = set.dests[d];
+        int s = ++seq[d];
+        boolean ok;
+        if (packet != null) {
+            packet.putChar(3, dest).putInt(5, s);
+            packet.position(0);
+            ok = route.send_data_buffer(local_name, dest, packet);
+        } else {
+            ok = route.send_data_fragments(local_name, dest, s, message);
+        }
+        if (ok) {
+            sent++;
+        } else {
+            dropped++;
+        }
+        return ok;
+    }
+
+    // Thread main function
+    @Override
+    public void run() {
+        try {
+            Thread.sleep(set.delay);
+        } catch (InterruptedException e) {
+            return;
+        }
+        long interval = (set.rate > 0) ? (long) (set.burst * 1e9 / set.rate) : 0;
+        long start = System.nanoTime();
+        long next = start;
+        start_time = start;
+        node.Log("Traffic generator started: " + set + "\n");
+        while (keepRunning) {
+            long now = System.nanoTime();
+            if ((set.duration > 0) && (now - start >= set.duration * 1000000L)) {
+                break;
+            }
+            if (now < next) {
+                LockSupport.parkNanos(this, next - now);
+                continue;
+            }
+            boolean ok = true;
+            for (int i = 0; i < set.burst; i++) {
+                ok &= send_one();
+            }
+            end_time = System.nanoTime();
+            if (!ok) {
+                // The output queue is full: let it drain
+                LockSupport.parkNanos(this, DROP_BACKOFF);
+            }
+            next += interval;
+            if (now - next > MAX_LATE) {
+                next = now;
+            }
+        }
+        end_time = System.nanoTime();
+        node.Log("Traffic generator stopped: " + statistics() + "\n");
+    }
+
+    // Stops thread
+    public void stopRunning() {
+        keepRunning = false;
+        interrupt();
+    }
+
+    /**
+     * Return a string with the generator counters
+     *
+     * @return string with the counters
+     */
+    public String statistics() {
+        long sent = this.sent;
+        double secs = (end_time - start_time) / 1e9;
+        StringBuilder sb = new StringBuilder("Traffic to ");
+        for (int i = 0; i < set.dests.length; i++) {
+            sb.append(i == 0 ? "" : ",").append(NodeId.toString(set.dests[i]));
+        }
+        sb.append(": snt:").append(sent).append(" dropped:").append(dropped);
+        if (secs > 0) {
+            sb.append(String.format(" in %.1fs rate:%.0fpps %.3fMbit/s", secs,
+                    sent / secs, sent * set.size * 8 / secs / 1e6));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Redes Integradas de Telecomunicacoes I MIEEC 2014/2015
+ *
+ * TrafficSink.java
+ *
+ * Receive side of the traffic generator: rate, loss and reordering per
+ * sender
+ */
+package router;
+
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Receive side of the traffic generator. Generated messages start with
+ * TrafficGenerator.MAGIC and the generator run number, and their sequence
+ * numbers count from 1 for each destination, so the destination can measure
+ * the received rate, the loss (sequence numbers never received) and the
+ * reordering (messages older than the newest one received). Duplicates are
+ * detected within a window of WINDOW sequence numbers behind the newest one,
+ * and are left out of the loss; older messages are counted as reordered. A
+ * new run from the same sender restarts its counters.
+ */
+public class TrafficSink {
+
+    /** Sequence numbers tracked behind the newest one, for duplicates */
+    private final static int WINDOW = 1024;
+
+    /**
+     * Counters of the traffic from one sender
+     */
+    private static final class Flow {
+
+        final int run;
+        /** Time of the first and last message [ns] */
+        final long first;
+        long last;
+        long received;
+        long bytes;
+        /** Highest sequence number received */
+        long max_seq;
+        long reordered;
+        long duplicates;
+        /** Sequence numbers received in the window, by seq % WINDOW */
+        final BitSet seen = new BitSet(WINDOW);
+
+        Flow(int run, long now) {
+            this.run = run;
+            this.first = now;
+        }
+    }
+
+    /** Flows, by sender */
+    private final TreeMap<Character, Flow> flows = new TreeMap<>();
+
+    /**
+     * Test if a message was sent by the traffic generator
+     *
+     * @param buf buffer with the message
+     * @param pos offset of the message
+     * @param len message length
+     * @return true if generated
+     */
+    public static boolean is_generated(ByteBuffer buf, int pos, int len) {
+        byte[] magic = TrafficGenerator.MAGIC;
+        if (len < TrafficGenerator.HEADER_LEN) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (buf.get(pos + i) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Count a generated message
+     *
+     * @param sender sender name
+     * @param seq message sequence number
+     * @param buf buffer with the message
+     * @param pos offset of the message
+     * @param len message length
+     */
+    public synchronized void received(char sender, int seq, ByteBuffer buf, int pos, int len) {
+        long now = System.nanoTime();
+        int run = buf.getInt(pos + TrafficGenerator.MAGIC.length);
+        Flow f = flows.get(sender);
+        if ((f == null) || (f.run != run)) {
+            f = new Flow(run, now);
+            flows.put(sender, f);
+        }
+        long s = seq & 0xFFFFFFFFL;
+        f.last = now;
+        if (s > f.max_seq) {
+            // Clear the slots of the sequence numbers that leave the window
+            if (s - f.max_seq >= WINDOW) {
+                f.seen.clear();
+            } else {
+                for (long i = f.max_seq + 1; i < s; i++) {
+                    f.seen.clear((int) (i % WINDOW));
+                }
+            }
+            f.max_seq = s;
+        } else if (f.max_seq - s < WINDOW) {
+            if (f.seen.get((int) (s % WINDOW))) {
+                f.duplicates++;
+                return;
+            }
+            f.reordered++;
+        } else {
+            // Too old to tell a duplicate
+            f.reordered++;
+        }
+        f.seen.set((int) (s % WINDOW));
+        f.received++;
+        f.bytes += len;
+    }
+
+    /**
+     * Clear the counters
+     */
+    public synchronized void reset() {
+        flows.clear();
+    }
+
+    /**
+     * Return a string with the counters, one line per sender
+     *
+     * @return string with the counters, empty if no traffic was received
+     */
+    public synchronized String statistics() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Character, Flow> e : flows.entrySet()) {
+            Flow f = e.getValue();
+            double secs = (f.last - f.first) / 1e9;
+            long lost = Math.max(0, f.max_seq - f.received);
+            sb.append("Traffic from ").append(NodeId.toString(e.getKey()))
+                    .append(": rcv:").append(f.received)
+                    .append(" bytes:").append(f.bytes);
+            if (secs > 0) {
+                sb.append(String.format(" rate:%.0fpps %.3fMbit/s",
+                        (f.received - 1) / secs, (f.bytes * 8) / secs / 1e6));
+            }
+            sb.append(" lost:").append(lost)
+                    .append(String.format(" (%.2f%%)", f.max_seq == 0 ? 0.0 : 100.0 * lost / f.max_seq))
+                    .append(" reordered:").append(f.reordered)
+                    .append(" duplicates:").append(f.duplicates)
+                    .append('\n');
+        }
+        return sb.toString();
+    }
+}
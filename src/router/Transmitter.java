@@ -0,0 +1,388 @@
+/**
+ * Redes Integradas de Telecomunicacoes I MIEEC 2014/2015
+ *
+ * Transmitter.java
+ *
+ * Transmit pipeline: bounded output queues per next hop, drained by one
+ * sender thread
+ */
+package router;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Transmit pipeline: one bounded output queue per next hop, drained by one
+ * sender thread. The forwarding threads copy the packet into a queue and
+ * return at once, so a slow next hop or a full socket buffer only fills its
+ * own queue. When a queue is full the packet is dropped (tail drop); with
+ * the RED policy DATA packets are also dropped early, with a probability
+ * that grows with the average queue depth.
+ *
+ * Control packets (HELLO, BYE, ROUTE) have their own queue with strict
+ * priority: it is emptied before each DATA queue is served. The DATA queues
+ * are served round-robin, up to QUANTUM packets from each queue per turn.
+ */
+public class Transmitter extends Thread {
+
+    /** Drop policies */
+    public final static int TAIL_DROP = 0;
+    public final static int RED = 1;
+    /** Policy names, indexed by policy */
+    public final static String[] POLICY_NAMES = {"tail", "red"};
+    /** Default maximum number of packets per queue */
+    public final static int DEFAULT_QUEUE_LEN = 256;
+    /** Maximum number of packets sent from one queue per round */
+    public final static int QUANTUM = 8;
+    /** Weight of the last sample in the RED average depth */
+    public final static double RED_WEIGHT = 0.125;
+    /** RED drop probability at the maximum threshold */
+    public final static double RED_MAX_P = 0.1;
+    /** Wait before retrying when the socket send buffer is full [ns] */
+    private final static long BLOCKED_WAIT = 100000L;
+
+    /**
+     * Packet buffer, reused through the free list
+     */
+    private static final class Packet {
+
+        final ByteBuffer buf = ByteBuffer.allocateDirect(router.MAX_PACKET_LEN);
+        InetSocketAddress to;
+        byte code;
+        /** Neighbour name, for the statistics */
+        char name;
+        /** Time when the packet was queued [ns] */
+        long time;
+    }
+
+    /**
+     * Output queue of one next hop, or of the control packets, with its
+     * counters
+     */
+    public static final class OutputQueue {
+
+        /** Next hop name, or ' ' for the control queue */
+        public final char name;
+        private final ConcurrentLinkedQueue<Packet> queue = new ConcurrentLinkedQueue<>();
+        /** Number of queued packets, bounds the queue */
+        private final AtomicInteger depth = new AtomicInteger();
+        private final AtomicInteger depth_max = new AtomicInteger();
+        /** RED average depth; updated without a lock, an approximate value is enough */
+        private volatile double avg;
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder tail_drops = new LongAdder();
+        private final LongAdder early_drops = new LongAdder();
+        /** Packets sent here by an equal-cost multipath choice */
+        final LongAdder multipath = new LongAdder();
+        /* Queueing delay; only written by the sender thread */
+        private volatile long delay_total;
+        private volatile long delay_max;
+
+        private OutputQueue(char name) {
+            this.name = name;
+        }
+
+        /**
+         * Get the current number of queued packets
+         *
+         * @return the queue depth
+         */
+        public int depth() {
+            return depth.get();
+        }
+
+        private void reset() {
+            depth_max.set(depth.get());
+            sent.reset();
+            tail_drops.reset();
+            early_drops.reset();
+            multipath.reset();
+            delay_total = 0;
+            delay_max = 0;
+        }
+    }
+
+    private volatile boolean keepRunning = true;
+    private final DatagramChannel ch;
+    private final RouterNode node;
+    /** Maximum number of packets per queue */
+    private final int queue_len;
+    /** Drop policy */
+    private final int policy;
+    /** RED thresholds, on the average depth */
+    private final double min_th;
+    private final double max_th;
+    /** Control packet queue, served first */
+    private final OutputQueue control = new OutputQueue(' ');
+    private final ConcurrentHashMap<Character, OutputQueue> queues = new ConcurrentHashMap<>();
+    /** Queues in service order */
+    private final CopyOnWriteArrayList<OutputQueue> order = new CopyOnWriteArrayList<>();
+    /** Packet buffers not in use */
+    private final ConcurrentLinkedQueue<Packet> free = new ConcurrentLinkedQueue<>();
+    /** Number of packets in all the queues */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * Constructor
+     *
+     * @param ch datagram channel, in non-blocking mode
+     * @param node router runtime, counts the packets sent and logs errors
+     * @param queue_len maximum number of packets per queue
+     * @param policy drop policy (TAIL_DROP or RED)
+     */
+    public Transmitter(DatagramChannel ch, RouterNode node, int queue_len, int policy) {
+        super("Transmitter");
+        setDaemon(true);
+        this.ch = ch;
+        this.node = node;
+        this.queue_len = Math.max(1, queue_len);
+        this.policy = policy;
+        this.min_th = this.queue_len / 4.0;
+        this.max_th = this.queue_len * 3 / 4.0;
+    }
+
+    /**
+     * Get a drop policy from its name
+     *
+     * @param name policy name
+     * @return the policy
+     */
+    public static int parse_policy(String name) {
+        for (int i = 0; i < POLICY_NAMES.length; i++) {
+            if (POLICY_NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Invalid drop policy '" + name + "'");
+    }
+
+    /**
+     * Get the output queue of a next hop, creating it if needed
+     *
+     * @param name next hop name
+     * @return the queue
+     */
+    public OutputQueue queue(char name) {
+        OutputQueue q = queues.get(name);
+        if (q == null) {
+            OutputQueue n = new OutputQueue(name);
+            q = queues.putIfAbsent(name, n);
+            if (q == null) {
+                q = n;
+                order.add(n);
+            }
+        }
+        return q;
+    }
+
+    /**
+     * Decide a RED early drop, and update the average depth
+     *
+     * @param q queue
+     * @return true if the packet should be dropped
+     */
+    private boolean early_drop(OutputQueue q) {
+        double avg = q.avg + (q.depth.get() - q.avg) * RED_WEIGHT;
+        q.avg = avg;
+        if (avg < min_th) {
+            return false;
+        }
+        if (avg >= max_th) {
+            return true;
+        }
+        double p = RED_MAX_P * (avg - min_th) / (max_th - min_th);
+        return ThreadLocalRandom.current().nextDouble() < p;
+    }
+
+    /**
+     * Queue a DATA packet; never blocks. The packet is copied, so the buffer
+     * can be reused when the call returns
+     *
+     * @param q output queue of the next hop
+     * @param to destination socket address
+     * @param buf buffer with the packet, between position and limit
+     * @param code packet code, for the statistics
+     * @return true if queued, false if dropped
+     */
+    public boolean send(OutputQueue q, InetSocketAddress to, ByteBuffer buf, byte code) {
+        return enqueue(q, to, buf, code, q.name, policy == RED);
+    }
+
+    /**
+     * Queue a control packet in the priority queue; never blocks. The packet
+     * is copied, so the buffer can be reused when the call returns
+     *
+     * @param name neighbour name
+     * @param to neighbour socket address
+     * @param buf buffer with the packet, between position and limit
+     * @param code packet code, for the statistics
+     * @return true if queued, false if dropped
+     */
+    public boolean send_control(char name, InetSocketAddress to, ByteBuffer buf, byte code) {
+        return enqueue(control, to, buf, code, name, false);
+    }
+
+    /**
+     * Copy a packet to a queue, applying the drop policy
+     *
+     * @param q queue
+     * @param to destination socket address
+     * @param buf buffer with the packet, between position and limit
+     * @param code packet code
+     * @param name neighbour name
+     * @param red apply RED early drops
+     * @return true if queued, false if dropped
+     */
+    private boolean enqueue(OutputQueue q, InetSocketAddress to, ByteBuffer buf,
+            byte code, char name, boolean red) {
+        if (red && early_drop(q)) {
+            q.early_drops.increment();
+            return false;
+        }
+        int d = q.depth.incrementAndGet();
+        if (d > queue_len) {
+            q.depth.decrementAndGet();
+            q.tail_drops.increment();
+            return false;
+        }
+        if (d > q.depth_max.get()) {
+            q.depth_max.accumulateAndGet(d, Math::max);
+        }
+        Packet p = free.poll();
+        if (p == null) {
+            p = new Packet();
+        }
+        p.buf.clear();
+        p.buf.put(buf);
+        p.buf.flip();
+        p.to = to;
+        p.code = code;
+        p.name = name;
+        p.time = System.nanoTime();
+        q.queue.offer(p);
+        if (pending.incrementAndGet() == 1) {
+            LockSupport.unpark(this);
+        }
+        return true;
+    }
+
+    /**
+     * Send packets from one queue
+     *
+     * @param q queue
+     * @param max maximum number of packets to send
+     * @return false if the socket send buffer is full
+     * @throws IOException channel closed
+     */
+    private boolean serve(OutputQueue q, int max) throws IOException {
+        for (int i = 0; i < max; i++) {
+            Packet p = q.queue.peek();
+            if (p == null) {
+                break;
+            }
+            int len = p.buf.remaining();
+            try {
+                if (ch.send(p.buf, p.to) == 0) {
+                    // Non-blocking channel: retry the same packet later
+                    return false;
+                }
+                long delay = System.nanoTime() - p.time;
+                q.delay_total += delay;
+                if (delay > q.delay_max) {
+                    q.delay_max = delay;
+                }
+                q.sent.increment();
+                node.stats.sent(p.code, p.name, len);
+            } catch (ClosedChannelException e) {
+                throw e;
+            } catch (IOException e) {
+                node.Log("Error sending packet to " + NodeId.toString(p.name) + ": " + e + "\n");
+            }
+            q.queue.poll();
+            q.depth.decrementAndGet();
+            pending.decrementAndGet();
+            free.offer(p);
+        }
+        return true;
+    }
+
+    // Thread main function
+    @Override
+    public void run() {
+        try {
+            while (keepRunning) {
+                boolean blocked = !serve(control, Integer.MAX_VALUE);
+                for (OutputQueue q : order) {
+                    if (blocked) {
+                        break;
+                    }
+                    // Control packets queued meanwhile go first
+                    blocked = !serve(control, Integer.MAX_VALUE) || !serve(q, QUANTUM);
+                }
+                if (blocked) {
+                    LockSupport.parkNanos(this, BLOCKED_WAIT);
+                } else if (pending.get() == 0) {
+                    LockSupport.parkNanos(this, 50000000L);
+                }
+            }
+        } catch (IOException e) {
+            // Router stopped
+        }
+    }
+
+    // Stops thread; queued packets are discarded
+    public void stopRunning() {
+        keepRunning = false;
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Clear the queue counters
+     */
+    public void reset() {
+        control.reset();
+        for (OutputQueue q : order) {
+            q.reset();
+        }
+    }
+
+    /**
+     * Return a string with the queue counters, one line per queue
+     *
+     * @return string with the counters
+     */
+    public String queue_statistics() {
+        StringBuilder sb = new StringBuilder();
+        long data_drops = 0;
+        for (OutputQueue q : order) {
+            data_drops += q.tail_drops.sum() + q.early_drops.sum();
+        }
+        sb.append("Queues (").append(POLICY_NAMES[policy]).append(", ")
+                .append(queue_len).append(" pkts): drop control:")
+                .append(control.tail_drops.sum()).append(" DATA:").append(data_drops)
+                .append('\n');
+        format(sb, "Control", control);
+        for (OutputQueue q : order) {
+            format(sb, NodeId.toString(q.name), q);
+        }
+        return sb.toString();
+    }
+
+    private static void format(StringBuilder sb, String title, OutputQueue q) {
+        long sent = q.sent.sum();
+        sb.append("  ").append(title)
+                .append(": depth:").append(q.depth.get())
+                .append(" max:").append(q.depth_max.get())
+                .append(" snt:").append(sent)
+                .append(" drop tail:").append(q.tail_drops.sum())
+                .append(" early:").append(q.early_drops.sum())
+                .append(" ecmp:").append(q.multipath.sum())
+                .append(" delay avg:").append(sent == 0 ? 0 : q.delay_total / sent / 1000)
+                .append("us max:").append(q.delay_max / 1000).append("us\n");
+    }
+}
@@ -13,6 +13,8 @@ package router;
 
 import java.net.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
 
 
@@ -30,6 +32,8 @@ public final class neighbour {
     public int dist;
     /** address of the neighbour, includes IP+port */
     public InetAddress netip;
+    /** socket address of the neighbour, used to send packets */
+    public InetSocketAddress sockaddr;
     
 // Distance-vector protocols' specific data
     /** Vector received from neighbour router */    
@@ -38,6 +42,15 @@ public final class neighbour {
     public Date vec_date;
     /** Vector TTL */
     public long vec_TTL;    // in seconds
+    /** True after the full local vector was sent to the neighbour, so it
+     *  can receive the changes only */
+    public boolean route_synced;
+    /** Sender's version of the vector */
+    public int vec_version;
+    /** Digest of the vector */
+    public int vec_digest;
+    /** True if vec_version and vec_digest describe the vector */
+    public boolean vec_versioned;
         
     /**
      * Return the name of the neighbour
@@ -77,10 +90,8 @@ public final class neighbour {
      */
     private boolean parseName(String name) {
         // Clear name
-        if (name.length() != 1)
-            return false;
-        char c= name.charAt(0);
-        if (!Character.isUpperCase (c))
+        char c= NodeId.parse(name);
+        if (c == ' ')
             return false;
         this.name= c;
         return true;
@@ -107,6 +118,7 @@ public final class neighbour {
             this.name= name;
             this.port= port;
             this.dist= distance;
+            this.sockaddr= new InetSocketAddress(netip, port);
         } else
             this.ip= null;
     }
@@ -119,6 +131,7 @@ public final class neighbour {
         this.name= src.name;
         this.ip= src.ip;
         this.netip= src.netip;
+        this.sockaddr= src.sockaddr;
         this.port= src.port;
         this.dist= src.dist;
     }
@@ -136,6 +149,7 @@ public final class neighbour {
             this.name= name;
             this.port= port;
             this.dist= distance;
+            this.sockaddr= new InetSocketAddress(netip, port);
         } else
             clear();
     }
@@ -155,6 +169,30 @@ public final class neighbour {
         this.vec_TTL= TTL;
     }
     
+    /**
+     * Vector-distance specific function:
+     *  restarts the TTL of the last vector received, when the neighbour
+     *  sends it again unchanged
+     * @param TTL  Time to Live
+     */
+    public void refresh_vec(long TTL) {
+        this.vec_date= new Date();  // Now
+        this.vec_TTL= TTL;
+    }
+
+    /**
+     * Vector-distance specific function:
+     *  records the sender's version and the digest of the vector
+     * @param version  sender's version
+     * @param digest   digest of the vector
+     * @param known    true if the vector matches the sender's version
+     */
+    public void set_vec_version(int version, int digest, boolean known) {
+        this.vec_version= version;
+        this.vec_digest= digest;
+        this.vec_versioned= known;
+    }
+
     /**
      * Clear the contents of the neigbour object
      */
@@ -162,11 +200,14 @@ public final class neighbour {
         this.name= ' ';
         this.ip= null;
         this.netip= null;
+        this.sockaddr= null;
         this.port= 0;
         this.dist= router.MAX_DISTANCE;
         this.vec= null;
         this.vec_date= null;
         this.vec_TTL= 0;
+        this.route_synced= false;
+        this.vec_versioned= false;
     }
 
     /**
@@ -201,92 +242,91 @@ public final class neighbour {
         }
         long sum = ttl.getTime() + vec_date.getTime();
         Date now = new Date();
-        System.out.println("Now: "+now+"/n TTL: "+vec_TTL+" seconds - Expiration date: "+sum);
         return (vec!=null && (now.getTime()<sum)); 
         // TO DO - it should also test if the time elapsed since vec_date is less than TTL
     }
         
     /**
      * Send a packet to the neighbour
-     * @param ds  datagram socket
+     * @param ds   datagram channel
+     * @param buf  buffer with the packet contents
+     * @throws IOException Error sending packet
+     */
+    public void send_packet(DatagramChannel ds, 
+                                ByteBuffer buf) throws IOException {
+        if (ds.send(buf, this.sockaddr) == 0) {
+            // Non-blocking channel: socket buffer is full
+            throw new IOException("Socket send buffer full");
+        }
+    }
+    
+    /**
+     * Send a packet to the neighbour
+     * @param ds  datagram channel
      * @param dp  datagram packet with the packet contents
      * @throws IOException Error sending packet
      */
-    public void send_packet(DatagramSocket ds, 
+    public void send_packet(DatagramChannel ds, 
                                 DatagramPacket dp) throws IOException {
-        try {
-            dp.setAddress(this.netip);
-            dp.setPort(this.port);
-            ds.send(dp);
-        }
-        catch (IOException e) {
-            throw e;
-        }        
+        send_packet(ds, ByteBuffer.wrap(dp.getData(), dp.getOffset(), 
+                dp.getLength()));
     }
     
     /**
      * Send a packet to the neighbour
-     * @param ds  datagram socket
+     * @param ds  datagram channel
      * @param os  output stream with the packet contents
      * @throws IOException Error sending packet
      */
-    public void send_packet(DatagramSocket ds, 
+    public void send_packet(DatagramChannel ds, 
                                 ByteArrayOutputStream os) throws IOException {
-        try {
-            byte [] buffer = os.toByteArray();
-            DatagramPacket dp= new DatagramPacket(buffer, buffer.length, 
-                this.netip, this.port);
-            ds.send(dp);
-        }
-        catch (IOException e) {
-            throw e;
-        }        
+        send_packet(ds, ByteBuffer.wrap(os.toByteArray()));
     }
     
     /**
      * Create a send a HELLO packet to the neighbour
-     * @param ds    datagram socket
-     * @param win   main window object 
+     * @param ds    datagram channel
+     * @param node  router runtime
      * @return true if sent successfully, false otherwise
      */
-    public boolean send_Hello(DatagramSocket ds, router win) {
+    public boolean send_Hello(DatagramChannel ds, RouterNode node) {
         // Send HELLO packet
         ByteArrayOutputStream os= new ByteArrayOutputStream();
         DataOutputStream dos= new DataOutputStream(os);
         try {
             dos.writeByte(router.PKT_HELLO);
             // name ('letter')
-            dos.writeChar(win.local_name());
+            dos.writeChar(node.local_name());
             // Distance
             dos.writeInt(dist);
             send_packet(ds, os);
-            win.HELLO_snt++;
+            node.stats.sent(router.PKT_HELLO, name, os.size());
             return true;
         }
         catch (IOException e) {
-            System.out.println("Internal error sending packet HELLO: "+e+"\n");
+            node.Log("Internal error sending packet HELLO: "+e+"\n");
             return false;
         }        
     }
     
     /**
      * Create a send a BYE packet to the neighbour
-     * @param ds    datagram socket
-     * @param win   main window object 
+     * @param ds    datagram channel
+     * @param node  router runtime
      * @return true if sent successfully, false otherwise
      */
-    public boolean send_Bye(DatagramSocket ds, router win) {
+    public boolean send_Bye(DatagramChannel ds, RouterNode node) {
         ByteArrayOutputStream os= new ByteArrayOutputStream();
         DataOutputStream dos= new DataOutputStream(os);
         try {
             dos.writeByte(router.PKT_BYE);
-            dos.writeChar(win.local_name());
+            dos.writeChar(node.local_name());
             send_packet(ds, os);
-            win.BYE_snt++;
+            node.stats.sent(router.PKT_BYE, name, os.size());
             return true;
         }
         catch (IOException e) {
-            System.out.println("Internal error sending packet BYE: "+e+"\n");
+            node.Log("Internal error sending packet BYE: "+e+"\n");
             return false;
         }        
     }
@@ -300,7 +340,7 @@ public final class neighbour {
         String str= ""+name;
         if (name == ' ')
             str= "INVALID";
-        return "("+name+" ; "+ip+" ; "+port+" ; "+dist+")";
+        return "("+NodeId.toString(name)+" ; "+ip+" ; "+port+" ; "+dist+")";
     }
     
     /**
@@ -317,8 +357,6 @@ public final class neighbour {
             String _name= st.nextToken();
             if (!parseName(_name))
                 return false;
-            if (!_name.equals(""+name))
-                return false;
             String _ip= st.nextToken();
             int _port= Integer.parseInt(st.nextToken());
             int _dist= Integer.parseInt(st.nextToken());
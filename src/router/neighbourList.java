@@ -14,6 +14,8 @@ package router;
 import java.util.*;
 import java.net.*;
 import java.io.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
 import javax.swing.*;
 
 /**
@@ -26,13 +28,13 @@ public class neighbourList {
      */
     private final int max_range;
     /**
-     * Reference to the main window of the GUI
+     * Reference to the router runtime
      */
-    private final router win;
+    private final RouterNode node;
     /**
-     * List of neighbour objects
+     * List of neighbour objects; lookups by name run without locking
      */
-    private final HashMap<Character, neighbour> list;
+    private final ConcurrentHashMap<Character, neighbour> list;
     /**
      * Lock to synchronize the access to the list
      */
@@ -42,12 +44,12 @@ public class neighbourList {
      * Constructor - create a new instance of neighbourList
      *
      * @param max_range maximum number of neigbours in the list
-     * @param win main window
+     * @param node router runtime
      */
-    public neighbourList(int max_range, router win) {
+    public neighbourList(int max_range, RouterNode node) {
         this.max_range = max_range;
-        this.win = win;
-        list = new HashMap<>();
+        this.node = node;
+        list = new ConcurrentHashMap<>();
     }
 
     /**
@@ -75,45 +77,46 @@ public class neighbourList {
      * @param ip ip address
      * @param port port number
      * @param distance distance
-     * @param ds datagram socket
+     * @param ds datagram channel
      * @return true if new neighbour was created and added, false otherwise
      */
-    public boolean add_neig(char name, String ip, int port, int distance, DatagramSocket ds) {
-        char local_name = win.local_name();
+    public boolean add_neig(char name, String ip, int port, int distance, DatagramChannel ds) {
+        char local_name = node.local_name();
         boolean novo;
-        System.out.println("add_neig(" + name + ")");
+        node.Log("add_neig(" + NodeId.toString(name) + ")\n");
         synchronized (list_lock) {
             if ((novo = !list.containsKey(name)) && (list.size() == max_range)) {
-                System.out.println("List is full\n");
+                node.Log("List is full\n");
                 return false;
             }
         }
         neighbour pt = locate_neig(ip, port);
         if (local_name == name) {
-            System.out.println("Name equals local_name");
+            node.Log("Name equals local_name\n");
             return false;
         }
         if ((pt != null) && (pt.Name() != name)) {
-            System.out.println("Duplicated IP and port\n");
+            node.Log("Duplicated IP and port\n");
             return false;
         }
         if ((distance < 1) || (distance > router.MAX_DISTANCE)) {
-            System.out.println("Invalid distance (" + distance + ")");
+            node.Log("Invalid distance (" + distance + ")\n");
             return false;
         }
         // Prepare neighbour entry
         pt = new neighbour(name, ip, port, distance);
         if (!pt.is_valid()) {
-            System.out.println("Invalid neighbour data\n");
+            node.Log("Invalid neighbour data\n");
             return false;
         }
         synchronized (list_lock) {
             // Adds or replaces a member of the table
             list.put(name, pt);
         }
+        node.stats.add_neighbour(name);
         if (novo) // If not known
         {
-            pt.send_Hello(ds, win);
+            pt.send_Hello(ds, node);
         }
         return true;
     }
@@ -128,18 +131,18 @@ public class neighbourList {
      * @return true if updated the fields, false otherwise
      */
     public boolean update_neig(char name, String ip, int port, int distance) {
-        System.out.println("update_neig(" + name + ")");
+        node.Log("update_neig(" + NodeId.toString(name) + ")\n");
         neighbour pt = locate_neig(ip, port);
         if (pt == null) {
-            System.out.println("Inexistant Neighbour\n");
+            node.Log("Inexistant Neighbour\n");
             return false;
         }
         if ((distance < 1) || (distance > router.MAX_DISTANCE)) {
-            System.out.println("Invalid distance (" + distance + ")");
+            node.Log("Invalid distance (" + distance + ")\n");
             return false;
         }
         if (name != pt.Name()) {
-            System.out.println("Invalid name - missmatched name previously associated with IP/port");
+            node.Log("Invalid name - missmatched name previously associated with IP/port\n");
             return false;
         }
         if (pt.Dist() == distance) {
@@ -156,10 +159,10 @@ public class neighbourList {
      *
      * @param name name of neighbour
      * @param send_msg if true, sends a BYE message
-     * @param ds datagram socket
+     * @param ds datagram channel
      * @return true if deleted successfully, false otherwise
      */
-    public boolean del_neig(char name, boolean send_msg, DatagramSocket ds) {
+    public boolean del_neig(char name, boolean send_msg, DatagramChannel ds) {
         neighbour neig;
         synchronized (list_lock) {
             try {
@@ -169,11 +172,11 @@ public class neighbourList {
             }
         }
         if (neig == null) {
-            win.Log("Neighbour " + name + " not deleted\n");
+            node.Log("Neighbour " + NodeId.toString(name) + " not deleted\n");
             return false;
         }
         if (send_msg) {
-            neig.send_Bye(ds, win);
+            neig.send_Bye(ds, node);
         }
         synchronized (list_lock) {
             // Adds or replaces a member of the table
@@ -187,17 +190,17 @@ public class neighbourList {
      *
      * @param neig neighbour to be deleted
      * @param send_msg if true, sends a BYE message
-     * @param ds datagram socket
+     * @param ds datagram channel
      * @return true if deleted successfully, false otherwise
      */
-    public boolean del_neig(neighbour neig, boolean send_msg, DatagramSocket ds) {
+    public boolean del_neig(neighbour neig, boolean send_msg, DatagramChannel ds) {
         synchronized (list_lock) {
             if (!list.containsValue(neig)) {
                 return false;
             }
         }
         if (send_msg) {
-            neig.send_Bye(ds, win);
+            neig.send_Bye(ds, node);
         }
         synchronized (list_lock) {
             // Removes a member from the list
@@ -209,12 +212,12 @@ public class neighbourList {
     /**
      * empty neighbour list and send BYE to all members
      *
-     * @param ds datagram socket
+     * @param ds datagram channel
      */
-    public void clear_BYE(DatagramSocket ds) {
+    public void clear_BYE(DatagramChannel ds) {
         synchronized (list_lock) {
             for (neighbour pt : list.values()) {
-                pt.send_Bye(ds, win);
+                pt.send_Bye(ds, node);
             }
         }
         clear();
@@ -262,12 +265,12 @@ public class neighbourList {
     /**
      * Send a packet to all neighbours in the list except 'exc'
      *
-     * @param ds datagram socket
+     * @param ds datagram channel
      * @param dp datagram packet to be sent
      * @param exc neighbour to exclude, or null
      * @throws IOException  Error sending packet
      */
-    public void send_packet(DatagramSocket ds, DatagramPacket dp,
+    public void send_packet(DatagramChannel ds, DatagramPacket dp,
             neighbour exc) throws IOException {
         synchronized (list_lock) {
             for (neighbour pt : list.values()) {
@@ -300,7 +303,7 @@ public class neighbourList {
             for (int i = 0; i < max_range; i++) { // For every row
                 if (it.hasNext()) {
                     neighbour pt = it.next();
-                    table.setValueAt("" + pt.Name(), i, 0);
+                    table.setValueAt(NodeId.toString(pt.Name()), i, 0);
                     table.setValueAt(pt.Ip(), i, 1);
                     table.setValueAt("" + pt.Port(), i, 2);
                     table.setValueAt("" + pt.Dist(), i, 3);
@@ -345,7 +348,7 @@ public class neighbourList {
 
         if (add_local) {
             // Adds the local name
-            aux.add(new Entry(win.local_name(), 0));
+            aux.add(new Entry(node.local_name(), 0));
         }
 
         synchronized (list_lock) {
@@ -12,36 +12,66 @@
 package router;
 
 import java.net.*;
-import java.io.*;
+import java.util.*;
 
 /**
  * Main class and graphic interface class with auxiliary functions
  */
-public class router extends javax.swing.JFrame {
+public class router extends javax.swing.JFrame implements RouterNode.View {
     
     /** Packet's type codes */
     public final static byte PKT_HELLO = 1;
     public final static byte PKT_BYE = 2;
     public final static byte PKT_ROUTE = 10;
+    public final static byte PKT_ROUTE_DELTA = 11;
+    public final static byte PKT_QUERY = 12;
+    public final static byte PKT_REPLY = 13;
     public final static byte PKT_DATA = 20;
+    public final static byte PKT_DATA_FRAG = 21;
     /** Maximum valid distance for a route, above or equal is infinity */
     public final static int MAX_DISTANCE = 30;
-    /** Maximum path length for a DATA packet */
-    public final static int MAX_PATH_LEN = 10;
+    /** Maximum path length for a DATA packet; a loop-free path is shorter */
+    public final static int MAX_PATH_LEN = MAX_DISTANCE + 1;
+    /** Size of the receive buffer, larger than any valid packet */
+    public final static int MAX_PACKET_LEN = 8096;
+    /** Maximum DATA message length, sent in fragments: the UDP limit */
+    public final static int MAX_PAYLOAD = 65507;
+    /** Size of a DATA fragment header, before the contents */
+    public final static int FRAG_HEADER_LEN = 19;
+    /** Size of the contents of a DATA fragment, except the last one; leaves
+     *  room for the longest path with 16 bit names */
+    public final static int MAX_FRAGMENT = MAX_PACKET_LEN - FRAG_HEADER_LEN - 1
+            - 2 * MAX_PATH_LEN;
     
     /**
      * Constructor - creates a new form router
      */
     public router() {
-        this.data_seq = 0;
         // Start main window
         initComponents();
-        // Start neighbour list
-        neig= new neighbourList(neigTable.getRowCount(), this);
-        
-        ds= null;
-        daemon= null;
-        route= null;
+        // Start log writer
+        AsyncLog log= new AsyncLog(AsyncLog.DEBUG, AsyncLog.DEFAULT_CAPACITY, 
+            new AsyncLog.Sink() {
+                @Override
+                public void write(final String s) {
+                    System.out.print(s);
+                    javax.swing.SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            logText.append(s);
+                        }
+                    });
+                }
+            });
+        log.start();
+        // Start router runtime
+        node= new RouterNode(log, neigTable.getRowCount(), this);
+        checkSndIfChanges.addItemListener(new java.awt.event.ItemListener() {
+            @Override
+            public void itemStateChanged(java.awt.event.ItemEvent evt) {
+                node.set_sendIfChanges(checkSndIfChanges.isSelected());
+            }
+        });
     }
     
     /** This method is called from within the constructor to
@@ -343,41 +373,41 @@ public class router extends javax.swing.JFrame {
 
         routeTable.setModel(new javax.swing.table.DefaultTableModel(
             new Object [][] {
-                {null, null, null, null},
-                {null, null, null, null},
-                {null, null, null, null},
-                {null, null, null, null},
-                {null, null, null, null},
-                {null, null, null, null},
-                {null, null, null, null},
-                {null, null, null, null},
-                {null, null, null, null},
-                {null, null, null, null},
-                {null, null, null, null},
-                {null, null, null, null},
-                {null, null, null, null},
-                {null, null, null, null},
-                {null, null, null, null},
-                {null, null, null, null},
-                {null, null, null, null},
-                {null, null, null, null},
-                {null, null, null, null},
-                {null, null, null, null},
-                {null, null, null, null},
-                {null, null, null, null},
-                {null, null, null, null},
-                {null, null, null, null},
-                {null, null, null, null}
+                {null, null, null, null, null},
+                {null, null, null, null, null},
+                {null, null, null, null, null},
+                {null, null, null, null, null},
+                {null, null, null, null, null},
+                {null, null, null, null, null},
+                {null, null, null, null, null},
+                {null, null, null, null, null},
+                {null, null, null, null, null},
+                {null, null, null, null, null},
+                {null, null, null, null, null},
+                {null, null, null, null, null},
+                {null, null, null, null, null},
+                {null, null, null, null, null},
+                {null, null, null, null, null},
+                {null, null, null, null, null},
+                {null, null, null, null, null},
+                {null, null, null, null, null},
+                {null, null, null, null, null},
+                {null, null, null, null, null},
+                {null, null, null, null, null},
+                {null, null, null, null, null},
+                {null, null, null, null, null},
+                {null, null, null, null, null},
+                {null, null, null, null, null}
             },
             new String [] {
-                "Destination", "Router", "Distance", "Holddown"
+                "Destination", "Router", "Distance", "Holddown", "Penalty"
             }
         ) {
             Class[] types = new Class [] {
-                java.lang.String.class, java.lang.String.class, java.lang.Integer.class, java.lang.Integer.class
+                java.lang.String.class, java.lang.String.class, java.lang.Integer.class, java.lang.Integer.class, java.lang.String.class
             };
             boolean[] canEdit = new boolean [] {
-                false, false, false, false
+                false, false, false, false, false
             };
 
             public Class getColumnClass(int columnIndex) {
@@ -486,6 +516,12 @@ public class router extends javax.swing.JFrame {
             write_statistics();
         if (evt.getKeyChar() == 'z')
             zero_statistics();
+        if (evt.getKeyChar() == '+')
+            set_log_level(node.log().level()+1);
+        if (evt.getKeyChar() == '-')
+            set_log_level(node.log().level()-1);
+        if (evt.getKeyChar() == 't')
+            toggle_traffic();
     }//GEN-LAST:event_logTextKeyPressed
 
     /** 
@@ -523,14 +559,7 @@ public class router extends javax.swing.JFrame {
      * @param evt graphical event
      */
     private void buttonSendActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_buttonSendActionPerformed
-        if (!tbuttonActive.isSelected()) {
-            Log("Router is not active\n");
-            return;
-        }
-        synchronized (main_lock) {
-            route.send_data_packet(local_name(), editDestName.getText().charAt(0), 
-                ++data_seq, editMessage.getText(), "");
-        }
+        node.send_data(NodeId.parse(editDestName.getText()), editMessage.getText());
     }//GEN-LAST:event_buttonSendActionPerformed
 
     /** 
@@ -538,26 +567,11 @@ public class router extends javax.swing.JFrame {
      * @param evt graphical event
      */
     private void buttonModActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_buttonModActionPerformed
-        if (!tbuttonActive.isSelected()) {
-            Log("Router is not active\n");
-            return;
-        }
-        if (neig.locate_neig(editNeigName.getText().charAt(0)) == null) {
-            Log("Invalid neighbour\n");
-            return;
-        }
         try {
-            synchronized (main_lock) {
-                if (neig.update_neig(editNeigName.getText().charAt(0), 
+            node.update_neig(NodeId.parse(editNeigName.getText()), 
                               editNeigIP.getText(), 
                               Integer.parseInt(editNeigPort.getText()),
-                              Integer.parseInt(editNeigDist.getText()))) { 
-                    neig.refresh_table(neigTable);
-                    if (checkSndIfChanges.isSelected()) {
-                        route.network_changed(true);
-                    }
-                }
-            }
+                              Integer.parseInt(editNeigDist.getText()));
         }
         catch (NumberFormatException e) { 
             Log("Invalid number\n");
@@ -569,22 +583,7 @@ public class router extends javax.swing.JFrame {
      * @param evt graphical event
      */
     private void buttonRemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_buttonRemActionPerformed
-        if (!tbuttonActive.isSelected()) {
-            Log("Router is not active\n");
-            return;
-        }
-        if (neig.locate_neig(editNeigName.getText().charAt(0)) == null) {
-            Log("Invalid neighbour\n");
-            return;
-        }
-        synchronized (main_lock) {
-            if (neig.del_neig(editNeigName.getText().charAt(0), true, ds)) {
-                neig.refresh_table(neigTable);
-                if (checkSndIfChanges.isSelected()) {
-                    route.network_changed(true);
-                }
-            }
-        }
+        node.del_neig(NodeId.parse(editNeigName.getText()));
     }//GEN-LAST:event_buttonRemActionPerformed
 
     /** 
@@ -592,35 +591,19 @@ public class router extends javax.swing.JFrame {
      * @param evt graphical event
      */
     private void buttonAddActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_buttonAddActionPerformed
-        if (!tbuttonActive.isSelected()) {
-            Log("Router is not active\n");
+        char new_name= NodeId.parse(editNeigName.getText());
+        if (new_name == ' ') {
+            Log("Invalid name '"+editNeigName.getText()+"'\n");
             return;
         }
-        String new_name= editNeigName.getText();
-        if (new_name.length()>1 || !Character.isUpperCase(new_name.charAt(0))) {
-            Log("Invalid name '"+new_name+"'\n");
-            return;
-        }
-        if (neig.locate_neig(new_name.charAt(0)) != null) {
-            Log("Duplicate name\n");
-            return;            
+        try {
+            node.add_neig(new_name, 
+                          editNeigIP.getText(), 
+                          Integer.parseInt(editNeigPort.getText()),
+                          Integer.parseInt(editNeigDist.getText()));
         }
-        synchronized (main_lock) {
-            try {
-                if (neig.add_neig(new_name.charAt(0), 
-                              editNeigIP.getText(), 
-                              Integer.parseInt(editNeigPort.getText()),
-                              Integer.parseInt(editNeigDist.getText()),
-                              ds)) {
-                    neig.refresh_table(neigTable);
-                    if (checkSndIfChanges.isSelected()) {
-                        route.network_changed(true);
-                    }
-                }
-            }
-            catch (NumberFormatException e) { 
-                Log("Invalid number\n");
-            }
+        catch (NumberFormatException e) { 
+            Log("Invalid number\n");
         }
     }//GEN-LAST:event_buttonAddActionPerformed
 
@@ -631,54 +614,36 @@ public class router extends javax.swing.JFrame {
     private void tbuttonActiveActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_tbuttonActiveActionPerformed
         if (tbuttonActive.isSelected()) {
             // Start router
-            boolean active= false;
             try {
                 int port= Integer.parseInt(editPort.getText());
-                char c= editName.getText().charAt(0);              
+                char c= NodeId.parse(editName.getText(), false);
+                if (c == ' ') {
+                    Log("Invalid name '"+editName.getText()+"'\n");
+                    tbuttonActive.setSelected(false);
+                    return;
+                }
                 int period= Integer.parseInt(editPeriod.getText());
                 int minInterval= Integer.parseInt(editMinInterval.getText());
                 int holddownTime= Integer.parseInt (editHoldownTime.getText());
-                do {
-                    try {
-                        ds= new DatagramSocket(port);
-                        active= true;
-                    }
-                    catch (SocketException se) {
-                        // Skip to next letter
-                        port++;
-                        c++;
-                    }
-                } while (!active && (c<='Z'));
-                
-                if (!active) {
-                    Log("All letters ('A'-'Z') occupied\n");
+                RouterConfig conf= RouterConfig.create(c, port, period, minInterval, 
+                        jCheckBoxSplitH.isSelected(), jCheckBoxHolddown.isSelected(), 
+                        holddownTime, checkSndIfChanges.isSelected());
+                if (!node.start(conf, true)) {
                     tbuttonActive.setSelected(false);
                     return;
                 }
+                conf= node.config();
+                c= conf.name;
+                port= conf.port;
                  // Update edit boxes
                 editPort.setText(""+port);
                 editName.setText(""+c);
-                editIP.setText(InetAddress.getLocalHost().getHostAddress());
+                editIP.setText(conf.local_ip);
                 editDestName.setText (""+c);
                 if (c<'Z') c++; else c--;
                 editNeigName.setText(""+c);
                 editNeigPort.setText(""+(port+1));
-                editNeigIP.setText(InetAddress.getLocalHost().getHostAddress());
-                                
-                // Start routing timer
-                route= new routing(local_name(), neig, period, minInterval, 
-                    jCheckBoxSplitH.isSelected(), jCheckBoxHolddown.isSelected(), 
-                    holddownTime, this, ds, routeTable);
-                if (!route.start()) {
-                    Log("Failed to boot the routing object\n");
-                    ds.close();
-                    ds= null;
-                    tbuttonActive.setSelected(false);
-                    return;
-                }
-                // Start daemon thread
-                daemon= new Daemon(ds);
-                daemon.start();
+                editNeigIP.setText(conf.local_ip);
                 // Lock entry windows
                 editName.setEditable(false);
                 jCheckBoxSplitH.setEnabled(false);
@@ -688,8 +653,6 @@ public class router extends javax.swing.JFrame {
                 editIP.setEditable(false);
                 editPeriod.setEditable(false);
                 editMinInterval.setEditable(false);
-                //
-                zero_statistics();
             }
             catch (UnknownHostException e) {
                 Log("Localhost Unknown: "+e+"\n");
@@ -720,23 +683,7 @@ public class router extends javax.swing.JFrame {
      * Stops the router 
      */
     private void stop_router() {
-        if (daemon != null) {
-            daemon.stopRunning();
-            daemon= null;
-        }
-        if (route != null) {
-            route.stop();
-            route= null;
-        }
-        if (ds != null) {
-            neig.clear_BYE(ds);
-            neig.refresh_table(neigTable);
-            ds.close();
-            ds= null;
-        }
-        if (tbuttonActive.isSelected()) {
-            Log("Router "+local_name()+" stopped\n");
-        }
+        node.stop();
         editName.setEditable(true);
         jCheckBoxSplitH.setEnabled(true);
         jCheckBoxHolddown.setEnabled(true);
@@ -748,176 +695,61 @@ public class router extends javax.swing.JFrame {
     }
 
     /**
-     * Test if SndIfChanges is selected
-     * @return true if SndIfChanges is selected
-     */
-    public boolean is_sendIfChanges() {
-        return checkSndIfChanges.isSelected();
-    }
-    
-    /**
-     * Get the node name from the form
-     * @return local name (address)
+     * Get the router runtime
+     * @return the router runtime
      */
-    public char local_name() {
-        try {
-            return editName.getText().charAt(0);
-        }
-        catch(Exception e) {
-            Log("Local name error: "+e);
-        }
-        return '*';
+    public RouterNode node() {
+        return node;
     }
-    
+
     /**
-     * Test if nm is the local name
-     * @param nm test name
-     * @return true if names are equal, false otherwise
+     * Refresh the neighbour table; called by the router runtime
      */
-    public boolean is_local_name(char nm) {
-        return (nm == local_name());
+    @Override
+    public void neighbours_changed() {
+        javax.swing.SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                node.neighbours().refresh_table(neigTable);
+            }
+        });
     }
 
-
     /**
-     * handle incoming packets, decoding and processing HELLO and BYE packets
-     * @param dp    datagram packet
-     * @param dis   input stream
-     * @return true if packet was processed with success, false otherwise
+     * Display the routing table; called by the router runtime
+     * @param tab the new routing table contents
      */
-    boolean process_packet(DatagramPacket dp, DataInputStream dis) {
-        byte code;
-        char sender;
-        try {
-            code= dis.readByte();     // read code
-            sender= dis.readChar();   // read sender id
-            String ip= dp.getAddress().getHostAddress();  // Get sender address            
-            if (ip.startsWith("127.")) {
-                try {
-                    ip= InetAddress.getLocalHost().getHostAddress();
-                }
-                catch (UnknownHostException e) {
-                    Log("Error converting address '127.*'\n");
-                    return false;
-                }
-            }
-            
-            switch(code) {
-                case PKT_HELLO:
-                    Log("PKT_HELLO("+sender+")\n");
-                    HELLO_rcv++;
-                    // Update values
-                    int dist= dis.readInt();
-                    if (dis.available() != 0) {
-                        Log("Packet too long\n");
-                        return false;
-                    }
-                    if (tbuttonActive.isSelected()) {
-                        boolean ok= neig.add_neig(sender, ip, dp.getPort(), 
-                            dist, ds);
-                        if (ok) {
-                            neig.refresh_table(neigTable);
-                            if (is_sendIfChanges()) {
-                                route.network_changed(true);
-                            }
-                        }
-                    }
-                    break;
-                    
-                case PKT_BYE:
-                    Log("PKT_BYE("+sender+")\n");
-                    BYE_rcv++;
-                    if (dis.available() != 0) {
-                        Log("Packet too long\n");
-                        return false;
-                    }
-                    if (tbuttonActive.isSelected()) {
-                        boolean ok= neig.del_neig(sender, false, ds);
-                        if (ok) {
-                            neig.refresh_table(neigTable);
-                            if (is_sendIfChanges())
-                                route.network_changed(true);                            
+    @Override
+    public void routing_changed(Collection<RouteEntry> tab) {
+        final ArrayList<RouteEntry> rows= new ArrayList<>(tab);
+        javax.swing.SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                Iterator<RouteEntry> rit= rows.iterator();
+                for (int i= 0; i < routeTable.getRowCount(); i++) {
+                    if (rit.hasNext()) {
+                        RouteEntry r= rit.next();
+                        routeTable.setValueAt(""+r.dest, i, 0);
+                        routeTable.setValueAt(r.next_hops_string(), i, 1);
+                        routeTable.setValueAt(""+r.dist, i, 2);
+                        routeTable.setValueAt(""+r.isHolddown, i, 3);
+                        int penalty= r.penalty_at(System.currentTimeMillis());
+                        routeTable.setValueAt(penalty == 0 ? ""
+                                : (penalty + (r.suppressed ? " suppressed" : "")), i, 4);
+                    } else {
+                        for (int j= 0; j < 5; j++) {
+                            routeTable.setValueAt("", i, j);
                         }
                     }
-                    break;
-                    
-                case PKT_ROUTE:
-                    ROUTE_rcv++; 
-                    return route.process_ROUTE(sender, dp, ip, dis);
-                    
-                case PKT_DATA:
-                    DATA_rcv++;
-                    return route.process_DATA(sender, dp, ip, dis);
-                    
-                default:
-                    Log("Invalid packet code ("+code+")\n");
-                    INVALID_rcv++;
-                    return false;
                 }
             }
-            catch(IOException e) {
-                Log("Packet too short\n");
-                return false;
-            }
-            return true;
+        });
     }
 
     
 /**************************************************************/
     
     
-    /** 
-     * Thread that handles socket events 
-     */
-    public class Daemon extends Thread {
-        volatile boolean keepRunning= true;
-        DatagramSocket ds;
-        
-        /** Constructor */
-        Daemon(DatagramSocket ds) {
-            this.ds= ds;
-        }
-        
-        // Thread main function
-        @Override
-        public void run() {
-            byte [] buf= new byte[8096];
-            DatagramPacket dp= new DatagramPacket(buf, buf.length);
-            try {
-                while (keepRunning) {
-                    try {
-                        ds.receive(dp);
-                        ByteArrayInputStream BAis= 
-                            new ByteArrayInputStream(buf, 0, dp.getLength());
-                        DataInputStream dis= new DataInputStream(BAis);
-                        System.out.println("Received packet ("+dp.getLength()+
-                            ") from " + dp.getAddress().getHostAddress() +
-                            ":" +dp.getPort());
-                        
-                        synchronized (main_lock) {
-                            process_packet(dp, dis);
-                        }
-                    }
-                    catch (SocketException se) {
-                        if (keepRunning)
-                            Log("recv UDP SocketException : " + se + "\n");
-                    }
-                }
-            }
-            catch(IOException e) {
-                if (keepRunning)
-                    Log("IO exception receiving data from socket : " + e);
-            }
-        }
-        
-        // Stops thread
-        public void stopRunning() {
-            keepRunning= false;
-        }
-    }
-
-
-    
    /**
      * main function of the router program
      * @param args the command line arguments
@@ -927,70 +759,64 @@ public class router extends javax.swing.JFrame {
     }
     
     /**
-     * Write messages in the log window and in the command line
+     * Write messages in the log window and in the command line, at INFO level
      * @param s  message to write
      */
     public void Log(final java.lang.String s) {
-        logText.append(s);
-        System.out.print(s);
+        node.Log(s);
     }         
 
+    /**
+     * Change the log level
+     * @param level  new log level
+     */
+    public void set_log_level(int level) {
+        node.log().set_level(level);
+        node.Log(AsyncLog.ERROR, "Log level "+AsyncLog.LEVEL_NAMES[node.log().level()]+"\n");
+    }
+
     /** 
      * Clear statistics 
      */
     public void zero_statistics() {
-        HELLO_snt= 0;
-        HELLO_rcv= 0;
-        BYE_snt= 0;
-        BYE_rcv= 0;
-        ROUTE_snt= 0;
-        ROUTE_rcv= 0;
-        DATA_snt= 0;
-        DATA_rcv= 0;
-        INVALID_rcv= 0;
+        node.zero_statistics();
     }
 
     /** 
      * Write statistics 
      */
     public void write_statistics() {
-        Log("****Statistics**********************************************\n"+
-            "HELLO snt:"+HELLO_snt+" rcv:"+HELLO_rcv+
-            "; BYE snt:"+BYE_snt+" rcv:"+BYE_rcv+
-            "\nROUTE snt:"+ROUTE_snt+" rcv:"+ROUTE_rcv+
-            "; DATA snt:"+DATA_snt+" rcv:"+DATA_rcv+
-            "; Invalid rcv:"+INVALID_rcv+"\n"+
-            "************************************************************\n");
+        node.write_statistics();
+    }
+
+    /**
+     * Stop the traffic generator, or ask for its settings and start it
+     */
+    public void toggle_traffic() {
+        if (node.stop_traffic())
+            return;
+        String s= javax.swing.JOptionPane.showInputDialog(this,
+                "Traffic: dest=B:2,C rate=1000pps|kbps|Mbps size=64 duration=10 burst=1",
+                traffic_settings);
+        if (s == null)
+            return;
+        try {
+            node.start_traffic(TrafficGenerator.Settings.parse(s));
+            traffic_settings= s;
+        }
+        catch (IllegalArgumentException e) {
+            Log(e.getMessage()+"\n");
+        }
     }
 
     
     ////////////////////////////////////////////////////////////////////
 
     
-    /** Synchronization lock */
-    final public Integer main_lock= new Integer(0);
-    
-    /** Datagram socket */
-    private DatagramSocket ds;
-    /** Socket daemon */
-    private Daemon daemon;
-    /** neighbour list */
-    private final neighbourList neig;
-    /** routing object */
-    private routing route;
-    /** Sequence number for data packets */
-    private int data_seq;
-    
-    /* Statistics counters */
-    public int HELLO_snt;
-    public int HELLO_rcv;
-    public int BYE_snt;
-    public int BYE_rcv;
-    public int ROUTE_snt;   // only counts local routing
-    public int ROUTE_rcv;
-    public int DATA_snt;
-    public int DATA_rcv;
-    public int INVALID_rcv;
+    /** Router runtime */
+    private final RouterNode node;
+    /** Last traffic generator settings */
+    private String traffic_settings= "dest=A rate=100pps size=64 duration=10";
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
     javax.swing.JButton buttonAdd;
@@ -15,16 +15,15 @@ package router;
 import java.util.*;
 import java.net.*;
 import java.io.*;
-import javax.swing.*;
-import java.awt.event.*;
+import java.nio.*;
+import java.nio.channels.*;
 
 /**
  * Encapsulates the routing functions, hosting multiple instances of
  * Routing_process objects, and handles DATA packets
  */
 public class routing {
-    
-    //private Date lastROUTETime;
+
     /**
      * Maximum length of the Entry vector length
      */
@@ -33,41 +32,234 @@ public class routing {
      * Time added to the period to define the TTL field of the ROUTE packets
      */
     public final int TTL_ADD = 10;
+    /**
+     * Default random variation of the ROUTE sending period [% of period]
+     */
+    public final static int DEFAULT_JITTER = 15;
+    /**
+     * Default interval between the ROUTE packets of one update [ms]
+     */
+    public final static int DEFAULT_PACING = 10;
+    /**
+     * Default window that collects the changes of one triggered update [ms]
+     */
+    public final static int DEFAULT_COALESCE = 50;
+    /**
+     * Default half-life of the route flap penalty [s]
+     */
+    public final static int DEFAULT_DAMPENING = 15;
+    /**
+     * Route flap penalties: a route withdrawn, or its distance changed
+     */
+    public final static int WITHDRAW_PENALTY = 1000;
+    public final static int CHANGE_PENALTY = 500;
+    /**
+     * A route is suppressed when its penalty reaches SUPPRESS_LIMIT, and
+     * used again when it decays to REUSE_LIMIT; MAX_PENALTY bounds the time
+     * suppressed to log2(MAX_PENALTY / REUSE_LIMIT) half-lives. A suppressed
+     * route is frozen: it is advertised as unreachable, the route installed
+     * when it was suppressed stays in the table and the FIB, and it is not
+     * calculated again until it is reused, or its next hop leaves
+     */
+    public final static int SUPPRESS_LIMIT = 2000;
+    public final static int REUSE_LIMIT = 750;
+    public final static int MAX_PENALTY = 12000;
+    /**
+     * ROUTE packets queued closer than this belong to the same burst [ns]
+     */
+    private final static long BURST_WINDOW = 1000000L;
 
     // Variables
     /**
-     * Routing table object
+     * Routing table object; replaced as a whole after each calculation, so
+     * the DATA forwarding threads can read it without locking
+     */
+    public volatile HashMap<Character, RouteEntry> tab;
+    /**
+     * Forwarding table used by the DATA path; rebuilt when the routing table
+     * or the neighbours change
+     */
+    private volatile ForwardingTable fib = ForwardingTable.EMPTY;
+    /**
+     * Reassembly buffers for the fragmented messages sent to this node
      */
-    public HashMap<Character, RouteEntry> tab;
+    public final Reassembly reassembly = new Reassembly(Reassembly.DEFAULT_MAX_MESSAGES,
+            Reassembly.DEFAULT_MAX_BYTES, Reassembly.DEFAULT_TIMEOUT);
     /**
      * Lock to synchronize update of the routing table
      */
-    final private Integer tab_lock = new Integer(0);
+    private final Object tab_lock = new Object();
+
+    /**
+     * Neighbour state used by the last routing calculation
+     */
+    private static final class NeighbourView {
+
+        /** Vector used, compared by reference; null if none or expired */
+        Entry[] vec;
+        /** Distance to the neighbour */
+        int dist = -1;
+        /** Distance from the neighbour to the local node */
+        int d_back = -1;
+        /** Position of each destination in the vector */
+        HashMap<Character, Integer> index = new HashMap<>();
+        /** Last calculation that found the neighbour */
+        long generation;
+
+        /**
+         * Get the distance from the neighbour to a destination
+         *
+         * @param d destination
+         * @return the distance, or null if not in the vector
+         */
+        Integer dist(char d) {
+            Integer p = index.get(d);
+            return (p != null) ? vec[p].dist : null;
+        }
+    }
+
+    /* Incremental calculation state; guarded by tab_lock */
+    /**
+     * Neighbour snapshots, by name
+     */
+    private final HashMap<Character, NeighbourView> seen = new HashMap<>();
+    /**
+     * Destinations to calculate again
+     */
+    private final HashSet<Character> dirty = new HashSet<>();
+    /**
+     * Calculate every destination in the next calculation
+     */
+    private boolean full_recompute = true;
+    private long generation;
+    /**
+     * Destinations whose routes changed since the last update sent
+     */
+    private final TreeSet<Character> pending_changes = new TreeSet<>();
+    /**
+     * Set when a network change requests an update; cleared by the announce
+     * timer
+     */
+    private volatile boolean triggered;
+    /**
+     * Time when the last full update was sent [ms]
+     */
+    private long last_full;
+    private long full_sent;
+    private long delta_sent;
+    private long delta_entries;
+    private long encoded;
+
+    /**
+     * ROUTE packet encoded once and sent to every neighbour; the entries
+     * poisoned by split horizon are patched for each neighbour
+     */
+    private static final class EncodedRoute {
+
+        ByteBuffer buf = ByteBuffer.allocate(router.MAX_PACKET_LEN);
+        /** Packet length */
+        int len;
+        /** Routing table version encoded; -1 if not a full table */
+        long version = -1;
+        /** Next hops with poisoned entries */
+        char[] hops = new char[0];
+        /** Offsets of the poisoned distances, per next hop */
+        int[][] offsets = new int[0][];
+        /** Distances replaced while a packet is queued */
+        int[] saved = new int[0];
+        /** Digest of the whole routing table */
+        int digest;
+        /** Next hops with routes removed from the digest by split horizon */
+        char[] digest_hops = new char[0];
+        /** Digest of the routes through each of those next hops */
+        int[] digest_adjust = new int[0];
+    }
+
+    /** Length of the ROUTE header: code, sender, TTL, version, digest, length */
+    private final static int ROUTE_HEADER_LEN = 19;
+    /** Offset of the digest in the ROUTE header */
+    private final static int DIGEST_OFFSET = 11;
+    /** Maximum number of entries that fit in one ROUTE packet */
+    private final static int MAX_ROUTE_ENTRIES = (router.MAX_PACKET_LEN - ROUTE_HEADER_LEN) / Entry.SIZE;
+    /**
+     * Order-independent digest of the routing table, as sent in ROUTE
+     */
+    private int table_digest;
+    /**
+     * Digest of the routes through each next hop, which split horizon
+     * poisons
+     */
+    private final HashMap<Character, Integer> hop_digest = new HashMap<>();
+    /* Receive counters */
+    private volatile long unchanged_rcvd;
+    private volatile long decoded_rcvd;
+    private volatile long digest_errors;
+
+    /**
+     * Routing table version, incremented when a new table is published
+     */
+    private long version = new Random().nextInt() & 0x7FFFFFFF;
+    /**
+     * Last full ROUTE encoded, reused while the table does not change
+     */
+    private final EncodedRoute full_route = new EncodedRoute();
+    /**
+     * Last delta ROUTE encoded
+     */
+    private final EncodedRoute delta_route = new EncodedRoute();
+    /**
+     * Last QUERY or REPLY encoded
+     */
+    private final EncodedRoute dual_route = new EncodedRoute();
+    /* Counters */
+    private long runs;
+    private long full_runs;
+    private long recomputed;
+    private long routes_changed;
 
     /**
      * Local address name
      */
     private char local_name;
+    /**
+     * Local socket address, used to send DATA packets to the local node
+     */
+    private final InetSocketAddress self_addr;
     /**
      * Neighbour list
      */
     private neighbourList neig;
     /**
-     * Reference to main window with GUI
+     * Reference to the router runtime
      */
-    private router win;
+    private RouterNode node;
     /**
-     * Unicast datagram socket used to send packets
+     * Unicast datagram channel used to send packets
      */
-    private DatagramSocket ds;
+    private DatagramChannel ds;
     /**
-     * Reference to graphical routing table object
+     * Output queues used to send DATA and ROUTE packets
      */
-    private JTable tableObj;
-
+    private final Transmitter tx;
     public Date lastSending;
-    private javax.swing.Timer timer_announce;
-    private javax.swing.Timer timer_holddown;
+    /**
+     * Thread that runs the routing timers, independent of any GUI
+     */
+    private final TimerWheel timer;
+    private TimerWheel.Timeout timer_announce;
+    /** Incremented when timer_announce changes, so a replaced one does not run */
+    private long announce_seq;
+    /** True if timer_announce is a triggered update deadline */
+    private boolean announce_triggered;
+    /** Holddown expiry, per destination; guarded by tab_lock */
+    private final HashMap<Character, Expiry> holddown_timers = new HashMap<>();
+    /** Destinations whose holddown expired; guarded by tab_lock */
+    private final HashSet<Character> holddown_expired = new HashSet<>();
+    /** Vector TTL expiry, per neighbour; guarded by tab_lock */
+    private final HashMap<Character, Expiry> vec_timers = new HashMap<>();
+    /* Expiry counters */
+    private volatile long holddown_expiries;
+    private volatile long vec_expiries;
 
     // Configuration variables
     /**
@@ -90,41 +282,173 @@ public class routing {
      * Hold down time [s]
      */
     private final int MAX_holddown;          // Number of periods in holddown
+    /**
+     * Random variation of the ROUTE sending period [% of period]
+     */
+    private final int jitter;
+    /**
+     * Interval between the ROUTE packets of one update [ms]
+     */
+    private final int pacing;
+    /**
+     * Window that collects the changes of one triggered update [ms]
+     */
+    private final int coalesce;
+    private final Random random = new Random();
+
+    /**
+     * Half-life of the route flap penalty [ms]; 0 if dampening is off
+     */
+    private final long half_life;
+    /**
+     * Uses the DUAL feasibility condition and diffusing computations
+     * instead of Hold down
+     */
+    private final boolean dual;
+    /**
+     * Time to wait for the replies of a diffusing computation [ms]; a
+     * neighbour silent for this long has lost its vector anyway
+     */
+    private final long active_timeout;
+
+    /**
+     * DUAL state of a destination. The route is passive while it uses a
+     * feasible successor: a neighbour whose reported distance is below the
+     * feasible distance, the lowest distance since the route was last
+     * active, so it cannot be routing through this node. Without one, the
+     * route goes active: it keeps the current successor, queries every
+     * neighbour, and chooses the best route when all of them replied.
+     */
+    private static final class DualState {
+
+        /** Feasible distance */
+        int fd = router.MAX_DISTANCE;
+        boolean active;
+        /** Neighbours that did not reply yet */
+        final HashSet<Character> waiting = new HashSet<>();
+        /** Neighbours waiting for a reply */
+        final HashSet<Character> query_from = new HashSet<>();
+        /** Limit of the active phase */
+        Expiry timeout;
+        /** Start of the active phase [ms] */
+        long active_since;
+    }
+
+    /** DUAL state, per destination; guarded by tab_lock */
+    private final HashMap<Character, DualState> dual_state = new HashMap<>();
+    /** Destinations that went active, to query; guarded by tab_lock */
+    private final TreeSet<Character> dual_queries = new TreeSet<>();
+    /** Replies to send, per neighbour; guarded by tab_lock */
+    private final HashMap<Character, TreeSet<Character>> dual_replies = new HashMap<>();
+    /* DUAL counters */
+    private long active_phases;
+    private long active_max;
+    private long active_timeouts;
+    private volatile long queries_sent;
+    private volatile long replies_sent;
+    private volatile long queries_rcvd;
+    private volatile long replies_rcvd;
+
+    /**
+     * Route flap state of a destination
+     */
+    private static final class Flap {
+
+        /** Penalty at the time updated */
+        double penalty;
+        /** Time of the last penalty update [ms] */
+        long updated;
+        boolean suppressed;
+        /** Reuse of a suppressed route */
+        Expiry reuse;
+
+        /**
+         * Decay the penalty until now
+         *
+         * @param now current time [ms]
+         * @param half_life half-life [ms]
+         */
+        void decay(long now, long half_life) {
+            penalty = RouteEntry.decay(penalty, now - updated, half_life);
+            updated = now;
+        }
+    }
+
+    /** Route flap state, per destination; guarded by tab_lock */
+    private final HashMap<Character, Flap> flaps = new HashMap<>();
+    /* Dampening counters */
+    private long flap_count;
+    private long suppressions;
+    private long reuses;
+    /** Calculations skipped for suppressed routes */
+    private long suppressed_skips;
+
+    /* Triggered update windows; guarded by the routing object lock */
+    /** Changes collected in the current window */
+    private int window_changes;
+    private long windows;
+    private long window_changes_total;
+    private int window_changes_max;
+    /** Windows that sent ROUTE packets */
+    private long window_updates;
+    /** True while the announce closing a window recalculates the table */
+    private boolean window_flush;
+    /** Windows whose announce recalculated some route */
+    private long window_recalculations;
+
+    /** ROUTE packets waiting for their turn; guarded by delta_route */
+    private int paced_pending;
+    /** Start of the current burst [ns] and number of ROUTE packets in it */
+    private long burst_start;
+    private int burst;
+    /* ROUTE sending counters */
+    private volatile long paced_sent;
+    private volatile int burst_max;
+    private volatile long route_drops;
+    private volatile long route_oversize;
 
     /**
      * Create a new instance of a routing object, that encapsulates routing
      * processes
      *
-     * @param local_name local address
+     * @param conf router configuration (local address, timers and options)
      * @param neig neighbour list
-     * @param period ROUTE timer period
-     * @param min_interval minimum interval between ROUTE packets sent
-     * @param splitHorz use Split Horizon
-     * @param holddwn use Hold down
-     * @param MAX_holddwn Hold down time
-     * @param win reference to main window object
-     * @param ds unicast datagram socket
-     * @param TabObject Graphical object with the
-     */
-    public routing(char local_name, neighbourList neig, int period,
-            int min_interval, boolean splitHorz, boolean holddwn, int MAX_holddwn,
-            router win, DatagramSocket ds, JTable TabObject) {
-        this.local_name = local_name;
+     * @param node reference to the router runtime
+     * @param ds unicast datagram channel
+     * @param tx output queues for DATA and ROUTE packets
+     */
+    public routing(RouterConfig conf, neighbourList neig, RouterNode node,
+            DatagramChannel ds, Transmitter tx) {
+        this.local_name = conf.name;
+        this.self_addr = new InetSocketAddress(conf.local_addr, conf.port);
         this.neig = neig;
-        this.period = period;
-        this.min_interval = min_interval * 1000;
-        this.splitHorizon = splitHorz;
-        this.holddown = holddwn;
-        this.MAX_holddown = MAX_holddwn;
-        this.win = win;
+        this.period = conf.period;
+        this.min_interval = conf.min_interval * 1000;
+        this.splitHorizon = conf.split_horizon;
+        this.dual = conf.dual;
+        // The feasibility condition replaces Hold down
+        this.holddown = conf.holddown && !conf.dual;
+        this.active_timeout = (conf.period + TTL_ADD) * 1000L;
+        this.MAX_holddown = conf.holddown_time;
+        this.jitter = conf.jitter;
+        this.pacing = conf.pacing;
+        this.coalesce = conf.coalesce;
+        this.half_life = conf.dampening * 1000L;
+        this.node = node;
         this.ds = ds;
-        this.tableObj = TabObject;
+        this.tx = tx;
         // Initialize everything
+        this.timer = new TimerWheel("Routing timer", node, TimerWheel.DEFAULT_TICK,
+                TimerWheel.DEFAULT_SLOTS);
         this.timer_announce = null;
         this.tab = new HashMap<>();
         Log2("new routing(local='" + local_name + "', period=" + period
                 + ", min_interval=" + min_interval + (splitHorizon ? ", splitHorizon" : "")
-                + (holddown ? (", holddown(" + MAX_holddown + ")") : "") + ")");
+                + (holddown ? (", holddown(" + MAX_holddown + ")") : "")
+                + ", jitter=" + jitter + "%, pacing=" + pacing + "ms"
+                + ", coalesce=" + coalesce + "ms"
+                + ", dampening=" + conf.dampening + "s"
+                + (dual ? ", dual" : "") + ")");
     }
 
     /**
@@ -133,9 +457,9 @@ public class routing {
      * @return true if successful
      */
     public boolean start() {
+        timer.start();
         start_announce_timer();
         update_routing_table();        
-        start_holddownTimer();
         return true;
     }
 
@@ -144,35 +468,23 @@ public class routing {
      *
      * @param send_always if true, send always the ROUTE packet
      */
-    public void network_changed(boolean send_always) {
-        if (win.is_sendIfChanges()) {
-            long timeRoute;
-            //Checks if lastROUTETime is null
-            if(lastSending==null){
-                //If it is, defines time as 0;
-                timeRoute = 0;
-            } else{
-                //If not, we convert the date into a long integer
-                timeRoute = lastSending.getTime();
-            }
-            //We save the current date into a variable
-            Date nowDate = new Date();
-            long now = nowDate.getTime();
-            //If min_interval has elapsed, we send the route package immediatly
-            //if(now>= timeRoute + (min_interval)){
-            if(test_time_since_last_update()){
-                timer_announce.stop();
-                timer_announce.setInitialDelay(0);
-                timer_announce.start();
-            } 
-            //If not we reschedule the timer to send the route package as soon
-            //as the minimum delay expires.
-            else {
+    public synchronized void network_changed(boolean send_always) {
+        if (node.is_sendIfChanges()) {
+            triggered = true;
+            window_changes++;
+            if (announce_triggered) {
+                // The triggered update is already scheduled: the change
+                // goes in the same recalculation and update
+                return;
+            }
+            if (test_time_since_last_update()) {
+                // Wait for the changes that usually come together
+                run_announce_timer(coalesce);
+            } else {
+                // Not before min_interval since the last ROUTE sent
                 reschedule_announce_timer();
             }
-            // Recalculate the table and send it if send_always or if the table changed
-            // Control the time between ROUTEs; 
-            //     if min_interval was not reached sleep until that time before sending the ROUTE packet.
+            announce_triggered = true;
         }
     }
 
@@ -181,16 +493,29 @@ public class routing {
      */
     public void stop() {
         stop_announce_timer();
+        timer.stopRunning();
         // Clean routing table
-        tab.clear();
+        synchronized (tab_lock) {
+            holddown_timers.clear();
+            holddown_expired.clear();
+            vec_timers.clear();
+            flaps.clear();
+            dual_state.clear();
+            dual_queries.clear();
+            dual_replies.clear();
+            tab = new HashMap<>();
+            table_digest = 0;
+            hop_digest.clear();
+            version++;
+        }
+        fib = ForwardingTable.EMPTY;
 
         update_routing_window();
 
         local_name = ' ';
         neig = null;
-        win = null;
+        node = null;
         ds = null;
-        tableObj = null;
     }
 
     /**
@@ -200,39 +525,225 @@ public class routing {
      * @return true if successful, false otherwise
      */
     public boolean send_local_ROUTE(neighbour n) {
-        Log2("send_local_ROUTE(" + n.Name() + ")\n");
+        if (Log_on(AsyncLog.TRACE)) {
+            Log2("send_local_ROUTE(" + n.Name() + ")\n");
+        }
+        synchronized (full_route) {
+            encode_full_ROUTE();
+            return send_full_ROUTE(full_route, n);
+        }
+    }
 
-        // Prepare and send message
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(os);
-        try {
-            dos.writeByte(router.PKT_ROUTE);
-            dos.writeChar(local_name);
-            dos.writeInt(period + TTL_ADD);   // TTL value
-            dos.writeInt(tab.size());
-            for (RouteEntry rt : tab.values()) {
-                // This is a good place to put the split horizon implementation ...
-                if ((rt.next_hop == n.name) && splitHorizon) {
-                    RouteEntry rt_sh = new RouteEntry(rt);
-                    if (rt_sh.dist < router.MAX_DISTANCE) {
-                        rt_sh.dist = router.MAX_DISTANCE;
-                    }
-                    rt_sh.writeEntry(dos);
-                } else {
-                    rt.writeEntry(dos);
+    /**
+     * Encode the full ROUTE packet in full_route, if the routing table
+     * changed since; the caller holds the full_route lock
+     */
+    private void encode_full_ROUTE() {
+        synchronized (tab_lock) {
+            if (full_route.version != version) {
+                encode_ROUTE(full_route, router.PKT_ROUTE, tab, tab.keySet());
+                full_route.version = version;
+            }
+        }
+    }
+
+    /**
+     * Sends an encoded full ROUTE packet to neighbour n
+     *
+     * @param e encoded packet
+     * @param n neighbour reference
+     * @return true if successful, false otherwise
+     */
+    private boolean send_full_ROUTE(EncodedRoute e, neighbour n) {
+        boolean ok = send_encoded(e, n);
+        n.route_synced = ok;
+        if (ok) {
+            full_sent++;
+        }
+        return ok;
+    }
+
+    /**
+     * Sends a delta ROUTE packet to neighbour n, with the routes to some
+     * destinations; a destination without route is sent with infinite
+     * distance
+     *
+     * @param n neighbour reference, which received a full ROUTE before
+     * @param dests destinations
+     * @return true if successful, false otherwise
+     */
+    public boolean send_delta_ROUTE(neighbour n, Collection<Character> dests) {
+        synchronized (delta_route) {
+            synchronized (tab_lock) {
+                encode_ROUTE(delta_route, router.PKT_ROUTE_DELTA, this.tab, dests);
+            }
+            return send_delta_ROUTE(delta_route, n, dests.size());
+        }
+    }
+
+    /**
+     * Sends an encoded delta ROUTE packet to neighbour n
+     *
+     * @param e encoded packet
+     * @param n neighbour reference, which received a full ROUTE before
+     * @param size number of entries
+     * @return true if successful, false otherwise
+     */
+    private boolean send_delta_ROUTE(EncodedRoute e, neighbour n, int size) {
+        if (Log_on(AsyncLog.TRACE)) {
+            Log2("send_delta_ROUTE(" + n.Name() + "," + size + ")\n");
+        }
+        boolean ok = send_encoded(e, n);
+        if (ok) {
+            delta_sent++;
+            delta_entries += size;
+        } else {
+            // It missed some changes: send it the full table next time
+            n.route_synced = false;
+        }
+        return ok;
+    }
+
+    /**
+     * Encode a ROUTE or delta ROUTE packet, common to all the neighbours,
+     * and record the entries that split horizon poisons for each next hop.
+     * A packet with more than MAX_ROUTE_ENTRIES entries does not fit in the
+     * transmit and receive buffers: it is left empty, and is not sent.
+     *
+     * @param e encoded packet, reused
+     * @param code packet code
+     * @param tab routing table
+     * @param dests destinations sent
+     */
+    private void encode_ROUTE(EncodedRoute e, byte code, HashMap<Character, RouteEntry> tab,
+            Collection<Character> dests) {
+        e.version = -1;
+        if (dests.size() > MAX_ROUTE_ENTRIES) {
+            e.len = 0;
+            route_oversize++;
+            Log("Cannot send ROUTE: " + dests.size() + " entries, the limit is "
+                    + MAX_ROUTE_ENTRIES + "\n");
+            return;
+        }
+        ByteBuffer b = e.buf;
+        b.clear();
+        b.put(code);
+        b.putChar(local_name);
+        b.putInt(period + TTL_ADD);   // TTL value
+        b.putInt((int) version);
+        b.putInt(0);                  // Digest, set for each neighbour
+        b.putInt(dests.size());
+        e.digest = table_digest;
+        e.digest_hops = new char[hop_digest.size()];
+        e.digest_adjust = new int[hop_digest.size()];
+        int k = 0;
+        for (Map.Entry<Character, Integer> h : hop_digest.entrySet()) {
+            e.digest_hops[k] = h.getKey();
+            e.digest_adjust[k++] = h.getValue();
+        }
+        HashMap<Character, ArrayList<Integer>> poisoned = new HashMap<>();
+        for (char d : dests) {
+            RouteEntry rt = tab.get(d);
+            // A destination without route was withdrawn; a suppressed
+            // route is not advertised
+            int dist = ((rt != null) && !rt.suppressed) ? rt.dist : router.MAX_DISTANCE;
+            b.putChar(d);
+            if (splitHorizon && (rt != null) && (rt.next_hop != ' ')
+                    && (dist < router.MAX_DISTANCE)) {
+                ArrayList<Integer> list = poisoned.get(rt.next_hop);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    poisoned.put(rt.next_hop, list);
                 }
+                list.add(b.position());
+            }
+            b.putInt(dist);
+        }
+        e.len = b.position();
+        e.hops = new char[poisoned.size()];
+        e.offsets = new int[poisoned.size()][];
+        int i = 0;
+        for (Map.Entry<Character, ArrayList<Integer>> p : poisoned.entrySet()) {
+            e.hops[i] = p.getKey();
+            ArrayList<Integer> list = p.getValue();
+            e.offsets[i] = new int[list.size()];
+            for (int j = 0; j < list.size(); j++) {
+                e.offsets[i][j] = list.get(j);
             }
-            byte[] buffer = os.toByteArray();
-            DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
+            i++;
+        }
+        encoded++;
+    }
 
-            n.send_packet(ds, dp);
-            lastSending = new Date();
-            win.ROUTE_snt++;
-            return true;
-        } catch (IOException e) {
-            Log("Error sending ROUTE: " + e + "\n");
+    /**
+     * Queue an encoded ROUTE packet to neighbour n, with split horizon with
+     * poison reverse: the entries whose next hop is n are set to infinity
+     * while the packet is copied to the control queue, and restored after
+     *
+     * @param e encoded packet
+     * @param n neighbour reference
+     * @return true if successful, false otherwise
+     */
+    private boolean send_encoded(EncodedRoute e, neighbour n) {
+        if (e.len == 0) {
+            // Too large to encode
+            return false;
+        }
+        ByteBuffer b = e.buf;
+        // Digest of the whole vector seen by n, without the poisoned routes
+        int digest = e.digest;
+        for (int i = 0; i < e.digest_hops.length; i++) {
+            if (e.digest_hops[i] == n.name) {
+                digest -= e.digest_adjust[i];
+                break;
+            }
+        }
+        b.putInt(DIGEST_OFFSET, digest);
+        int[] offsets = null;
+        int[] saved = e.saved;
+        for (int i = 0; i < e.hops.length; i++) {
+            if (e.hops[i] == n.name) {
+                offsets = e.offsets[i];
+                break;
+            }
+        }
+        if (offsets != null) {
+            if (saved.length < offsets.length) {
+                saved = e.saved = new int[offsets.length];
+            }
+            for (int i = 0; i < offsets.length; i++) {
+                saved[i] = b.getInt(offsets[i]);
+                b.putInt(offsets[i], router.MAX_DISTANCE);
+            }
+        }
+        b.limit(e.len);
+        b.position(0);
+        // Sent from the control queue, ahead of the DATA packets
+        boolean ok = tx.send_control(n.name, n.sockaddr, b, b.get(0));
+        if (offsets != null) {
+            for (int i = 0; i < offsets.length; i++) {
+                b.putInt(offsets[i], saved[i]);
+            }
+        }
+        if (!ok) {
+            route_drops++;
+            Log("Control queue full: ROUTE to " + NodeId.toString(n.name) + " discarded\n");
             return false;
         }
+        long now = System.nanoTime();
+        if (now - burst_start > BURST_WINDOW) {
+            burst_start = now;
+            burst = 0;
+        }
+        if (++burst > burst_max) {
+            burst_max = burst;
+        }
+        if (lastSending == null) {
+            lastSending = new Date();
+        } else {
+            lastSending.setTime(System.currentTimeMillis());
+        }
+        return true;
     }
 
     /**
@@ -241,61 +752,165 @@ public class routing {
      * @return true if successful, false otherwise
      */
     public boolean send_local_ROUTE() {
-        
+        return send_updates(true);
+    }
+
+    /**
+     * Send the routing updates to all neighbours: the full table, or only
+     * the routes changed since the last update to the neighbours that
+     * received the full table before
+     *
+     * @param full if true, send the full table to every neighbour
+     * @return true if some neighbour was sent an update, false otherwise
+     */
+    private boolean send_updates(boolean full) {
         if ((tab == null) || tab.isEmpty()) {
             Log2("Cannot send ROUTE: invalid routing table\n");
-            return true;
+            return false;
+        }
+        int changes;
+        int turn = 0;
+        synchronized (delta_route) {
+            synchronized (tab_lock) {
+                changes = pending_changes.size();
+                if (!full && (changes > 0)) {
+                    encode_ROUTE(delta_route, router.PKT_ROUTE_DELTA, tab, pending_changes);
+                }
+                pending_changes.clear();
+            }
+            // send the local vector to all the neighbor routers, one by one,
+            // pacing interval apart
+            EncodedRoute full_copy = null;
+            EncodedRoute delta_copy = null;
+            for (neighbour pt : neig.values()) {
+                boolean send_full = full || !pt.route_synced;
+                if (!send_full && (changes == 0)) {
+                    continue;
+                }
+                if ((pacing == 0) || ((turn == 0) && (paced_pending == 0))) {
+                    // Nothing waiting: this one goes now
+                    if (send_full) {
+                        send_local_ROUTE(pt);
+                    } else {
+                        send_delta_ROUTE(delta_route, pt, changes);
+                    }
+                } else if (send_full) {
+                    if (full_copy == null) {
+                        synchronized (full_route) {
+                            encode_full_ROUTE();
+                            full_copy = copy_encoded(full_route);
+                        }
+                    }
+                    schedule_paced(new PacedRoute(pt.name, full_copy, true, 0), turn);
+                } else {
+                    if (delta_copy == null) {
+                        delta_copy = copy_encoded(delta_route);
+                    }
+                    schedule_paced(new PacedRoute(pt.name, delta_copy, false, changes), turn);
+                }
+                turn++;
+                if (Log_on(AsyncLog.DEBUG)) {
+                    Log(AsyncLog.DEBUG, "Sending ROUTE to " + pt + "\n");
+                }
+            }
         }
-        // send the local vector to all the neighbor routers, one by one
-        //    using the method above (send_local_ROUTE(neighbour))
-        for (neighbour pt : neig.values()) {
-            send_local_ROUTE(pt);
-            Log("Sending ROUTE to " + pt + "\n");
+        if (full) {
+            last_full = System.currentTimeMillis();
         }
-        return true;
+        return turn > 0;
     }
 
     /**
-     * Compare the routing tables rt1 and rt2
+     * Copy an encoded packet, so it can be sent after the original is
+     * encoded again
      *
-     * @param rt1 - routing table 1
-     * @param rt2 - routing table 2
-     * @return true if they are equal, false otherwise
+     * @param e encoded packet
+     * @return the copy
      */
-    public static boolean routing_tables_equal(HashMap<Character, RouteEntry> rt1, HashMap<Character, RouteEntry> rt2) {
-        if ((rt1 == null) || (rt2 == null)) {
-            return false;
-        }
-        if (rt1.size() != rt2.size()) {
-            return false;
+    private static EncodedRoute copy_encoded(EncodedRoute e) {
+        EncodedRoute c = new EncodedRoute();
+        c.buf = ByteBuffer.allocate(e.len);
+        c.buf.put(e.buf.array(), 0, e.len);
+        c.len = e.len;
+        c.version = e.version;
+        // Arrays are replaced, never modified, by encode_ROUTE
+        c.hops = e.hops;
+        c.offsets = e.offsets;
+        c.digest = e.digest;
+        c.digest_hops = e.digest_hops;
+        c.digest_adjust = e.digest_adjust;
+        return c;
+    }
+
+    /**
+     * ROUTE packet waiting for its turn in a paced update
+     */
+    private final class PacedRoute implements Runnable {
+
+        final char name;
+        /** Copy of the encoded packet, shared by the neighbours of one update */
+        final EncodedRoute packet;
+        final boolean full;
+        final int size;
+
+        PacedRoute(char name, EncodedRoute packet, boolean full, int size) {
+            this.name = name;
+            this.packet = packet;
+            this.full = full;
+            this.size = size;
         }
-        for (RouteEntry re : rt1.values()) {
-            if (!re.equals_to(rt2.get(re.dest))) {
-                return false;
+
+        @Override
+        public void run() {
+            RouterNode n = node;
+            neighbourList neig = routing.this.neig;
+            if ((n == null) || (neig == null)) {
+                return;     // Stopped
+            }
+            synchronized (n.main_lock) {
+                synchronized (delta_route) {
+                    paced_pending--;
+                    neighbour pt = neig.locate_neig(name);
+                    if ((pt == null) || (!full && !pt.route_synced)) {
+                        return;     // Neighbour removed or reset meanwhile
+                    }
+                    boolean ok;
+                    synchronized (packet) {
+                        ok = full ? send_full_ROUTE(packet, pt)
+                                : send_delta_ROUTE(packet, pt, size);
+                    }
+                    if (ok) {
+                        paced_sent++;
+                    }
+                }
             }
         }
-        return true;
     }
-    
+
     /**
-     * Compare the entry vectors vec1 and vec2
+     * Schedule a ROUTE packet of an update; the caller holds the
+     * delta_route lock. Packets scheduled later never go before, so each
+     * neighbour receives its updates in order.
      *
-     * @param vec1 - Entry vector 1
-     * @param vec2 - Entry vector 2
-     * @return true if they are equal, false otherwise
+     * @param p packet
+     * @param turn position in the update
      */
-    public static boolean entry_vectors_equal(Entry[] vec1, Entry[] vec2){
-        if((vec1==null) || (vec2 == null))
-            return false;
-        if (vec1.length != vec2.length)
-            return false;
-        
-        for (int i = 0; i < vec2.length; i++) {
-             if(vec1[i].dest != vec2[i].dest || vec1[i].dist != vec2[i].dist){
-                 return false;
-             }            
-        }
-        return true;
+    private void schedule_paced(PacedRoute p, int turn) {
+        paced_pending++;
+        timer.schedule(p, (long) turn * pacing);
+    }
+
+    /**
+     * Calculate the interval to the next periodic update: the period with a
+     * random variation of jitter %, so routers started together do not stay
+     * synchronised
+     *
+     * @return the interval [ms]
+     */
+    private int announce_interval() {
+        int p = period * 1000;
+        int j = p * jitter / 100;
+        return (j == 0) ? p : p - j + random.nextInt(2 * j + 1);
     }
 
     /**
@@ -308,16 +923,20 @@ public class routing {
     }
 
     /**
-     * Unmarshall a ROUTE packet and process it
+     * Unmarshall a ROUTE packet and process it. A full ROUTE with the
+     * version and digest of the stored vector only restarts its TTL,
+     * without decoding the entries.
      *
      * @param sender the sender address
-     * @param dp datagram packet
-     * @param ip IP address of the sender
-     * @param dis input stream object
+     * @param from sender socket address
+     * @param buf buffer with the packet, positioned after the sender
+     * @param code PKT_ROUTE, or PKT_ROUTE_DELTA, PKT_QUERY or PKT_REPLY,
+     * with the changed entries only
      * @return true if packet was handled successfully, false if error
      */
-    public boolean process_ROUTE(char sender, DatagramPacket dp,
-            String ip, DataInputStream dis) {
+    public boolean process_ROUTE(char sender, InetSocketAddress from,
+            ByteBuffer buf, byte code) {
+        boolean delta = (code != router.PKT_ROUTE);
         //Log("Packet ROUTE not supported yet\n");
         if (sender == local_name) {
             // Packet loopback - ignore
@@ -325,56 +944,101 @@ public class routing {
         }
         Entry[] data;
         try {
-            Log("PKT_ROUTE");
-            String aux;
-            aux = "(" + sender + ",";
-            int TTL = dis.readInt();
-            aux += "TTL=" + TTL + ",";
-            int n = dis.readInt();
-            aux += "List(" + n + ": ";
-            if ((n <= 0) || (n > 30)) {
-                Log("\nInvalid list length '" + n + "'\n");
+            int TTL = buf.getInt();
+            int version = buf.getInt();
+            int digest = buf.getInt();
+            int n = buf.getInt();
+            if ((n <= 0) || (n > buf.remaining() / Entry.SIZE)) {
+                Log("PKT_ROUTE(" + NodeId.toString(sender) + "): Invalid list length '" + n + "'\n");
                 return false;
             }
+
+            String ip = from.getAddress().getHostAddress();
+            neighbour pt = neig.locate_neig(ip, from.getPort());
+            if (pt == null) {
+                Log("\nERROR - Invalid sender (" + ip + " ; " + from.getPort() + "), it is not a neighbor\n");
+                return false;
+            }
+            if (pt.Name() != sender) {
+                Log("\nERROR - Invalid sender name (" + NodeId.toString(sender) + "), different from the neigbour table\n");
+                return false;
+            }
+            if (!delta && pt.vec_versioned && (pt.vec_version == version)
+                    && (pt.vec_digest == digest) && (pt.Vec() != null)) {
+                // Same vector as stored: it is still valid
+                pt.refresh_vec(TTL);
+                watch_vec(pt);
+                unchanged_rcvd++;
+                if (Log_on(AsyncLog.DEBUG)) {
+                    Log(AsyncLog.DEBUG, "PKT_ROUTE(" + NodeId.toString(sender) + ",TTL=" + TTL
+                            + ",version=" + version + "): unchanged\n");
+                }
+                return true;
+            }
+
             data = new Entry[n];
             for (int i = 0; i < n; i++) {
                 try {
-                    data[i] = new Entry(dis);
+                    data[i] = new Entry(buf);
                 } catch (IOException e) {
-                    Log("\nERROR - Invalid vector Entry: " + e.getMessage() + "\n");
+                    Log("PKT_ROUTE(" + NodeId.toString(sender) + "): ERROR - Invalid vector Entry: " + e.getMessage() + "\n");
                     return false;
                 }
-                aux += (i == 0 ? "" : " ; ") + data[i].toString();
             }
-            Log(aux + ")\n");
+            if (Log_on(AsyncLog.DEBUG)) {
+                StringBuilder aux = new StringBuilder();
+                aux.append(packet_name(code)).append('(').append(NodeId.toString(sender)).append(",TTL=").append(TTL)
+                        .append(",version=").append(version)
+                        .append(",List(").append(n).append(": ");
+                for (int i = 0; i < n; i++) {
+                    aux.append(i == 0 ? "" : " ; ").append(data[i]);
+                }
+                Log(AsyncLog.DEBUG, aux.append(")\n").toString());
+            }
+            decoded_rcvd++;
 
-            neighbour pt = neig.locate_neig(dp.getAddress().getHostAddress(), dp.getPort());
-            if (pt == null) {
-                Log("\nERROR - Invalid sender (" + dp.getAddress().getHostAddress() + " ; " + dp.getPort() + "), it is not a neighbor\n");
-                return false;
+            // Update router vector
+            if (delta) {
+                if (pt.Vec() == null) {
+                    // Nothing to apply it to: wait for the next full ROUTE
+                    Log(AsyncLog.DEBUG, packet_name(code) + "(" + NodeId.toString(sender)
+                            + "): no vector, ignored\n");
+                } else {
+                    if (!merge_delta(pt, data, TTL, version, digest)) {
+                        // A change was lost: the next full ROUTE is decoded
+                        digest_errors++;
+                        Log(AsyncLog.DEBUG, packet_name(code) + "(" + NodeId.toString(sender)
+                                + "): digest mismatch\n");
+                    }
+                    watch_vec(pt);
+                }
+                if ((code == router.PKT_QUERY) || (code == router.PKT_REPLY)) {
+                    dual_input(sender, code == router.PKT_QUERY, data);
+                }
+                network_changed(false);
+                update_routing_window();
+                return true;
             }
-            if (pt.Name() != sender) {
-                Log("\nERROR - Invalid sender name (" + sender + "), different from the neigbour table\n");
+            if (Entry.digest(data) != digest) {
+                digest_errors++;
+                Log("PKT_ROUTE(" + NodeId.toString(sender) + "): digest mismatch, ignored\n");
                 return false;
             }
-            // Update router vector
             //Code to store the vector received in the neighbour object associated
-            //If the neighbour has no Entries vector, updates it and calls
-            //Network changed
-            if (pt.Vec() == null) {
-                pt.update_vec(data, TTL);
-                network_changed(false);
-
-            } 
-            //If the vector stored is different from the one received updates it
-            //And calls network_changed
-            else if (!entry_vectors_equal(pt.Vec(), data)) {
+            //If the neighbour has no Entries vector, or if the vector stored
+            //has different entries, updates it and calls network_changed
+            if ((pt.Vec() == null) || !same_entries(pt.Vec(), data)) {
                 pt.update_vec(data, TTL);
                 network_changed(false);
+            } else {
+                // Same entries, maybe in another order: it is still valid
+                pt.refresh_vec(TTL);
             }
+            pt.set_vec_version(version, digest, true);
+            watch_vec(pt);
             update_routing_window();           
             return true;
-        } catch (IOException e) {
+        } catch (BufferUnderflowException e) {
             Log("\nERROR - Packet too short\n");
             return false;
         } catch (Exception e) {
@@ -384,139 +1048,926 @@ public class routing {
     }
 
     /**
-     * Test if a path is available to a destination through a neighbour
+     * Get the name of a ROUTE packet code, for the log
+     *
+     * @param code packet code
+     * @return the name
+     */
+    private static String packet_name(byte code) {
+        switch (code) {
+            case router.PKT_ROUTE_DELTA:
+                return "PKT_ROUTE_DELTA";
+            case router.PKT_QUERY:
+                return "PKT_QUERY";
+            case router.PKT_REPLY:
+                return "PKT_REPLY";
+            default:
+                return "PKT_ROUTE";
+        }
+    }
+
+    /**
+     * Compare the entries of two vectors, in any order
+     *
+     * @param vec1 - Entry vector 1
+     * @param vec2 - Entry vector 2
+     * @return true if they have the same entries, false otherwise
+     */
+    private static boolean same_entries(Entry[] vec1, Entry[] vec2) {
+        if (vec1.length != vec2.length) {
+            return false;
+        }
+        HashMap<Character, Integer> index = index_vector(vec1);
+        for (Entry ent : vec2) {
+            Integer p = index.get(ent.dest);
+            if ((p == null) || (vec1[p].dist != ent.dist)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Apply a delta ROUTE to the vector of a neighbour. When the routing
+     * calculation holds a snapshot of the current vector, the snapshot is
+     * updated in place and the changed destinations are marked, so the next
+     * calculation does not compare the whole vector again. The digest of
+     * the new vector is updated from the replaced entries.
+     *
+     * @param pt neighbour, with a valid vector
+     * @param delta changed entries
+     * @param TTL vector TTL
+     * @param version sender's version of the new vector
+     * @param digest sender's digest of the new vector
+     * @return true if the digest of the new vector matches the sender's
+     * @throws Exception invalid neighbour
+     */
+    private boolean merge_delta(neighbour pt, Entry[] delta, long TTL, int version,
+            int digest) throws Exception {
+        synchronized (tab_lock) {
+            Entry[] base = pt.vec;
+            NeighbourView v = seen.get(pt.name);
+            boolean in_sync = (v != null) && (v.vec == base) && (v.dist == pt.dist);
+            if (in_sync) {
+                for (Entry ent : delta) {
+                    if ((ent.dest == local_name) && (ent.dist != v.d_back)) {
+                        // Changes every alternate: compare the whole vector
+                        in_sync = false;
+                        break;
+                    }
+                }
+            }
+            HashMap<Character, Integer> index = in_sync ? v.index : index_vector(base);
+            Entry[] merged = Arrays.copyOf(base, base.length + delta.length);
+            int len = base.length;
+            int d = pt.vec_digest;
+            for (Entry ent : delta) {
+                Integer p = index.get(ent.dest);
+                if (p == null) {
+                    p = len++;
+                    index.put(ent.dest, p);
+                }
+                Entry old = merged[p];
+                if (old != null) {
+                    d -= Entry.hash(old.dest, old.dist);
+                }
+                d += Entry.hash(ent.dest, ent.dist);
+                if (in_sync && ((old == null) || (old.dist != ent.dist))) {
+                    dirty.add(ent.dest);
+                }
+                merged[p] = ent;
+            }
+            if (len < merged.length) {
+                merged = Arrays.copyOf(merged, len);
+            }
+            if (in_sync) {
+                v.vec = merged;
+            }
+            pt.update_vec(merged, TTL);
+            pt.set_vec_version(version, d, d == digest);
+            return d == digest;
+        }
+    }
+
+    /**
+     * Bring the neighbour snapshots up to date with the neighbour list, and
+     * mark the destinations whose inputs changed: the entries that differ
+     * in a new vector, and every destination of a neighbour whose distance,
+     * distance back to the local node, or presence changed
+     */
+    private void reconcile_neighbours() {
+        generation++;
+        for (neighbour vis : neig.values()) {
+            Entry[] vec = vis.Vec();
+            NeighbourView v = seen.get(vis.name);
+            if (v == null) {
+                v = new NeighbourView();
+                seen.put(vis.name, v);
+            }
+            v.generation = generation;
+            if ((v.vec == vec) && (v.dist == vis.dist)) {
+                continue;
+            }
+            HashMap<Character, Integer> index = index_vector(vec);
+            Integer back = index.get(local_name);
+            int d_back = (back != null) ? vec[back].dist : vis.dist;
+            if ((v.dist != vis.dist) || (v.d_back != d_back)) {
+                // Every path and alternate through this neighbour changed
+                dirty.addAll(v.index.keySet());
+                dirty.addAll(index.keySet());
+            } else {
+                for (Map.Entry<Character, Integer> e : index.entrySet()) {
+                    if (!Integer.valueOf(vec[e.getValue()].dist).equals(v.dist(e.getKey()))) {
+                        dirty.add(e.getKey());
+                    }
+                }
+                for (Character d : v.index.keySet()) {
+                    if (!index.containsKey(d)) {
+                        dirty.add(d);
+                    }
+                }
+            }
+            if ((vec == null) && (v.vec != null)) {
+                // Vector expired: it will not reply to queries
+                dual_neighbour_lost(vis.name);
+            }
+            v.vec = vec;
+            v.dist = vis.dist;
+            v.d_back = d_back;
+            v.index = index;
+        }
+        Iterator<Map.Entry<Character, NeighbourView>> it = seen.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Character, NeighbourView> e = it.next();
+            if (e.getValue().generation != generation) {
+                // Neighbour removed
+                dirty.addAll(e.getValue().index.keySet());
+                dual_neighbour_lost(e.getKey());
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Index a neighbour vector by destination
+     *
+     * @param vec vector, or null
+     * @return the position of each destination; the first one if repeated
+     */
+    private static HashMap<Character, Integer> index_vector(Entry[] vec) {
+        HashMap<Character, Integer> index = new HashMap<>();
+        if (vec != null) {
+            for (int i = 0; i < vec.length; i++) {
+                index.putIfAbsent(vec[i].dest, i);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Calculate the route to one destination from the neighbour snapshots,
+     * with the distance-vector, holddown and equal-cost rules
+     *
+     * @param d destination
+     * @param old previous route, or null
+     * @return the new route, or null if there is none
+     */
+    private RouteEntry compute_route(char d, RouteEntry old) {
+        if (dual && (d != local_name)) {
+            return compute_route_dual(d, old);
+        }
+        RouteEntry r = null;
+        if (d == local_name) {
+            r = new RouteEntry(local_name, ' ', 0);
+        } else if ((old != null) && holddown && (old.next_hop != ' ')
+                && (neig.locate_neig(old.next_hop) == null)) {
+            // The former next hop left: the route goes into Hold Down
+            r = new RouteEntry(old);
+            if (!r.isHolddown) {
+                r.isHolddown = true;
+                r.distHolddown = old.dist;
+                r.dist = router.MAX_DISTANCE;
+            }
+            //Checks if the holddown expired
+            if (holddown_expired.contains(d)) {
+                r = null;
+            }
+        }
+        // DV algorithm implementation
+        for (neighbour vis : neig.values()) {
+            NeighbourView v = seen.get(vis.name);
+            Integer dist = (v != null) ? v.dist(d) : null;
+            if (dist == null) {
+                continue;
+            }
+            //Keeps the route in holddown until it expires
+            if ((r == null) && (old != null) && holddown && old.isHolddown
+                    && !holddown_expired.contains(d)) {
+                r = new RouteEntry(old);
+            }
+            int cost = dist + vis.dist;
+            if (r != null) {
+                if (r.isHolddown) {
+                    //Verifies if a better route exists while on Hold Down
+                    if (cost <= r.distHolddown) {
+                        r = new RouteEntry(d, vis.name, cost);
+                    }
+                } else if (cost < r.dist) {
+                    r = new RouteEntry(d, vis.name, cost);
+                } else if ((cost == r.dist) && (r.dist < router.MAX_DISTANCE)) {
+                    // Equal cost: keep every next hop (ECMP)
+                    r.add_next_hop(vis.name);
+                }
+            } else if (cost < router.MAX_DISTANCE) {
+                r = new RouteEntry(d, vis.name, cost);
+            } else if (holddown && (old != null) && (vis.name == old.next_hop)
+                    && !old.isHolddown) {
+                /*An infinite distance from the former optimal neighbour puts
+                the route in hold down.
+                */
+                r = new RouteEntry(d, vis.name, router.MAX_DISTANCE);
+                r.distHolddown = old.dist;
+                r.backup_hop = old.backup_hop;
+                r.backup_dist = old.backup_dist;
+                r.isHolddown = true;
+            }
+        }
+        if ((r != null) && !r.isHolddown && (d != local_name)) {
+            compute_backup_hop(r);
+        }
+        return r;
+    }
+
+    /**
+     * Add a path to the best route found so far, keeping the equal-cost
+     * next hops
+     *
+     * @param r best route so far, or null
+     * @param d destination
+     * @param hop neighbour
+     * @param cost distance through the neighbour
+     * @return the best route
+     */
+    private static RouteEntry better(RouteEntry r, char d, char hop, int cost) {
+        if ((r == null) || (cost < r.dist)) {
+            return new RouteEntry(d, hop, cost);
+        }
+        if (cost == r.dist) {
+            r.add_next_hop(hop);
+        }
+        return r;
+    }
+
+    /**
+     * Calculate the route to one destination with the DUAL rules: a passive
+     * route moves to the best feasible successors; when they are not the
+     * best paths, the route goes active and is frozen on the current
+     * successor until every neighbour replied to the query
+     *
+     * @param d destination, not the local node
+     * @param old previous route, or null
+     * @return the new route, or null if there is none
+     */
+    private RouteEntry compute_route_dual(char d, RouteEntry old) {
+        DualState s = dual_state.get(d);
+        if (s == null) {
+            s = new DualState();
+            dual_state.put(d, s);
+        }
+        RouteEntry best = null;
+        RouteEntry feasible = null;
+        for (neighbour vis : neig.values()) {
+            NeighbourView v = seen.get(vis.name);
+            Integer rd = (v != null) ? v.dist(d) : null;
+            if ((rd == null) || (rd >= router.MAX_DISTANCE)
+                    || (rd + vis.dist >= router.MAX_DISTANCE)) {
+                continue;
+            }
+            best = better(best, d, vis.name, rd + vis.dist);
+            if (rd < s.fd) {
+                feasible = better(feasible, d, vis.name, rd + vis.dist);
+            }
+        }
+        RouteEntry r;
+        if (s.active) {
+            if (!s.waiting.isEmpty()) {
+                // Only the successor waits for the end of the computation
+                char succ = (old != null) ? old.next_hop : ' ';
+                Iterator<Character> it = s.query_from.iterator();
+                while (it.hasNext()) {
+                    char n = it.next();
+                    if (n != succ) {
+                        queue_reply(n, d);
+                        it.remove();
+                    }
+                }
+                return frozen_route(d, old);
+            }
+            // Every neighbour replied: the best route is loop-free
+            s.active = false;
+            timer.cancel(s.timeout.timeout);
+            s.timeout = null;
+            active_max = Math.max(active_max, System.currentTimeMillis() - s.active_since);
+            r = best;
+            s.fd = (r != null) ? r.dist : router.MAX_DISTANCE;
+        } else if ((best == null) || ((feasible != null) && (feasible.dist == best.dist))) {
+            // No path at all, or the best paths are feasible
+            r = (best == null) ? null : feasible;
+            s.fd = (r != null) ? Math.min(s.fd, r.dist) : router.MAX_DISTANCE;
+        } else {
+            // No feasible successor: start a diffusing computation
+            for (neighbour vis : neig.values()) {
+                NeighbourView v = seen.get(vis.name);
+                if ((v != null) && (v.vec != null)) {
+                    s.waiting.add(vis.name);
+                }
+            }
+            s.active = true;
+            s.active_since = System.currentTimeMillis();
+            s.timeout = new Expiry(d, Expiry.ACTIVE);
+            s.timeout.timeout = timer.schedule(s.timeout, active_timeout);
+            active_phases++;
+            dual_queries.add(d);
+            return frozen_route(d, old);
+        }
+        // Passive: answer the queries
+        for (char n : s.query_from) {
+            queue_reply(n, d);
+        }
+        s.query_from.clear();
+        if ((r == null) && (s.fd >= router.MAX_DISTANCE)) {
+            dual_state.remove(d);
+        }
+        if (r != null) {
+            compute_backup_hop(r);
+        }
+        return r;
+    }
+
+    /**
+     * Get the route of an active destination: the current successor, with
+     * its current distance, or no route if it is gone
+     *
+     * @param d destination
+     * @param old previous route, or null
+     * @return the route, or null
+     */
+    private RouteEntry frozen_route(char d, RouteEntry old) {
+        if ((old == null) || (old.next_hop == ' ')) {
+            return null;
+        }
+        neighbour vis = neig.locate_neig(old.next_hop);
+        NeighbourView v = seen.get(old.next_hop);
+        Integer rd = (v != null) ? v.dist(d) : null;
+        if ((vis == null) || (rd == null) || (rd + vis.dist >= router.MAX_DISTANCE)) {
+            return null;
+        }
+        return new RouteEntry(d, old.next_hop, rd + vis.dist);
+    }
+
+    /**
+     * Queue a reply to a neighbour; the caller holds tab_lock
+     *
+     * @param n neighbour
+     * @param d destination
+     */
+    private void queue_reply(char n, char d) {
+        TreeSet<Character> dests = dual_replies.get(n);
+        if (dests == null) {
+            dests = new TreeSet<>();
+            dual_replies.put(n, dests);
+        }
+        dests.add(d);
+    }
+
+    /**
+     * Stop waiting for the replies of a neighbour that left, or whose
+     * vector expired; the caller holds tab_lock
+     *
+     * @param name neighbour name
+     */
+    private void dual_neighbour_lost(char name) {
+        for (Map.Entry<Character, DualState> e : dual_state.entrySet()) {
+            DualState s = e.getValue();
+            s.query_from.remove(name);
+            if (s.active && s.waiting.remove(name)) {
+                dirty.add(e.getKey());
+            }
+        }
+    }
+
+    /**
+     * Handle the entries of a QUERY or REPLY, already merged in the vector
+     * of the neighbour, and calculate the routes at once: the replies and
+     * the queries of the neighbours do not wait for the update window.
+     * Without the DUAL mode, queries are answered with the current routes.
+     *
+     * @param sender neighbour
+     * @param query true for a QUERY, false for a REPLY
+     * @param data entries
+     */
+    private void dual_input(char sender, boolean query, Entry[] data) {
+        synchronized (tab_lock) {
+            if (query) {
+                queries_rcvd++;
+            } else {
+                replies_rcvd++;
+            }
+            for (Entry e : data) {
+                if (query && (!dual || (e.dest == local_name))) {
+                    queue_reply(sender, e.dest);
+                    continue;
+                }
+                DualState s = dual_state.get(e.dest);
+                if (query) {
+                    if (s == null) {
+                        s = new DualState();
+                        dual_state.put(e.dest, s);
+                    }
+                    s.query_from.add(sender);
+                    dirty.add(e.dest);
+                } else if ((s != null) && s.active && s.waiting.remove(sender)) {
+                    dirty.add(e.dest);
+                }
+            }
+        }
+        update_routing_table();
+    }
+
+    /**
+     * End an active phase whose replies did not arrive in time; the
+     * missing neighbours are treated as unreachable
+     *
+     * @param e expiry
+     * @return true if it is the current active phase of the destination
+     */
+    private boolean expire_active(Expiry e) {
+        synchronized (tab_lock) {
+            DualState s = dual_state.get(e.name);
+            if ((s == null) || (s.timeout != e)) {
+                return false;
+            }
+            s.waiting.clear();
+            dirty.add(e.name);
+            active_timeouts++;
+        }
+        Log("Route to " + NodeId.toString(e.name) + ": no reply to the query\n");
+        return true;
+    }
+
+    /**
+     * Send the queries of the routes that went active, to every neighbour,
+     * and the replies of the passive routes
+     */
+    private void send_dual() {
+        neighbourList neig = this.neig;
+        if (neig == null) {
+            return;
+        }
+        ArrayList<Character> queries;
+        HashMap<Character, TreeSet<Character>> replies;
+        synchronized (tab_lock) {
+            if (dual_queries.isEmpty() && dual_replies.isEmpty()) {
+                return;
+            }
+            queries = new ArrayList<>(dual_queries);
+            replies = new HashMap<>(dual_replies);
+            dual_queries.clear();
+            dual_replies.clear();
+        }
+        synchronized (dual_route) {
+            if (!queries.isEmpty()) {
+                synchronized (tab_lock) {
+                    encode_ROUTE(dual_route, router.PKT_QUERY, tab, queries);
+                }
+                for (neighbour pt : neig.values()) {
+                    if (send_encoded(dual_route, pt)) {
+                        queries_sent++;
+                    }
+                }
+            }
+            for (Map.Entry<Character, TreeSet<Character>> e : replies.entrySet()) {
+                neighbour pt = neig.locate_neig(e.getKey());
+                if (pt == null) {
+                    continue;
+                }
+                synchronized (tab_lock) {
+                    encode_ROUTE(dual_route, router.PKT_REPLY, tab, e.getValue());
+                }
+                if (send_encoded(dual_route, pt)) {
+                    replies_sent++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Select a loop-free alternate next hop for a route, from the neighbour
+     * snapshots: a neighbour N, other than the next hops, such that
+     * D(N,dest) &lt; D(N,local) + D(local,dest), so N never sends the
+     * packets back. The forwarding table uses it as soon as the next hops
+     * disappear, before the routing table is calculated again.
+     *
+     * @param rt new route, not in holddown
+     */
+    private void compute_backup_hop(RouteEntry rt) {
+        for (neighbour vis : neig.values()) {
+            NeighbourView v = seen.get(vis.name);
+            Integer dist = (v != null) ? v.dist(rt.dest) : null;
+            if ((dist == null) || (dist >= router.MAX_DISTANCE)
+                    || (Arrays.binarySearch(rt.next_hops, vis.name) >= 0)) {
+                continue;
+            }
+            int d = vis.dist + dist;
+            if ((dist < v.d_back + rt.dist) && (d < rt.backup_dist)) {
+                rt.backup_hop = vis.name;
+                rt.backup_dist = d;
+            }
+        }
+    }
+
+    /**
+     * Calculate the routing table, and send the DUAL queries and replies
+     * that resulted
+     *
+     * @return the destinations whose routes changed, sorted; empty if none
+     */
+    private synchronized List<Character> update_routing_table() {
+        List<Character> changed = recalculate();
+        send_dual();
+        return changed;
+    }
+
+    /**
+     * Calculate the routing table incrementally: only the destinations whose
+     * inputs changed since the last calculation, including the expiries run
+     * by the timing wheel (holddown, vector TTL, flap reuse), are calculated
+     * again; the first calculation covers every destination
+     *
+     * @return the destinations whose routes changed, sorted; empty if none
+     */
+    private List<Character> recalculate() {
+        ArrayList<Character> changed = new ArrayList<>();
+        synchronized (tab_lock) {
+            HashMap<Character, RouteEntry> baktab = tab;
+            reconcile_neighbours();
+            if (full_recompute) {
+                dirty.addAll(baktab.keySet());
+                for (NeighbourView v : seen.values()) {
+                    dirty.addAll(v.index.keySet());
+                }
+                dirty.add(local_name);
+                full_recompute = false;
+                full_runs++;
+            }
+            runs++;
+            if (dirty.isEmpty()) {
+                return changed;
+            }
+            if (window_flush) {
+                window_recalculations++;
+            }
+            recomputed += dirty.size();
+            HashMap<Character, RouteEntry> patch = new HashMap<>();
+            for (char d : dirty) {
+                RouteEntry old = baktab.get(d);
+                if (is_frozen(d, old)) {
+                    continue;
+                }
+                RouteEntry r = compute_route(d, old);
+                if ((r != null) && r.isHolddown) {
+                    if (!holddown_timers.containsKey(d)) {
+                        Expiry e = new Expiry(d, Expiry.HOLDDOWN);
+                        holddown_timers.put(d, e);
+                        e.timeout = timer.schedule(e, MAX_holddown * 1000L);
+                    }
+                } else {
+                    Expiry e = holddown_timers.remove(d);
+                    if (e != null) {
+                        timer.cancel(e.timeout);
+                    }
+                }
+                holddown_expired.remove(d);
+                if ((r == null) ? (old != null) : !r.same_route(old)) {
+                    patch.put(d, r);
+                    changed.add(d);
+                }
+            }
+            dirty.clear();
+            if (changed.isEmpty()) {
+                return changed;
+            }
+            // Publish the new table
+            HashMap<Character, RouteEntry> tab = new HashMap<>(baktab);
+            ArrayList<Character> advertised = new ArrayList<>(changed.size());
+            long now = System.currentTimeMillis();
+            for (Map.Entry<Character, RouteEntry> e : patch.entrySet()) {
+                RouteEntry old = baktab.get(e.getKey());
+                update_digest(old, -1);
+                dampen(e.getKey(), old, e.getValue(), now);
+                update_digest(e.getValue(), 1);
+                if ((old == null) || !old.suppressed || (e.getValue() == null)
+                        || !e.getValue().suppressed) {
+                    // Changes of a suppressed route are not advertised
+                    advertised.add(e.getKey());
+                }
+                if (e.getValue() == null) {
+                    tab.remove(e.getKey());
+                } else {
+                    tab.put(e.getKey(), e.getValue());
+                }
+            }
+            this.tab = tab;
+            version++;
+            routes_changed += changed.size();
+            pending_changes.addAll(advertised);
+        }
+        Collections.sort(changed);
+        if (Log_on(AsyncLog.DEBUG)) {
+            StringBuilder sb = new StringBuilder("Routes changed:");
+            for (char d : changed) {
+                sb.append(' ').append(NodeId.toString(d));
+            }
+            Log(AsyncLog.DEBUG, sb.append('\n').toString());
+        }
+        update_fib();
+        // Echo routing table
+        update_routing_window();
+        return changed;
+    }
+
+    /**
+     * Test if a destination is suppressed, and keeps its route without
+     * calculating it; the queries of its DUAL neighbours are answered with
+     * the frozen route. The caller holds tab_lock.
+     *
+     * @param d destination
+     * @param old current route, or null
+     * @return true if the route is frozen
+     */
+    private boolean is_frozen(char d, RouteEntry old) {
+        Flap f = flaps.get(d);
+        if ((f == null) || !f.suppressed) {
+            return false;
+        }
+        if ((old != null) && !seen.containsKey(old.next_hop)) {
+            // The next hop left: the route must change
+            return false;
+        }
+        suppressed_skips++;
+        DualState s = dual_state.get(d);
+        if (s != null) {
+            for (char n : s.query_from) {
+                queue_reply(n, d);
+            }
+            s.query_from.clear();
+        }
+        return true;
+    }
+
+    /**
+     * Update the flap penalty of a destination after its route changed,
+     * and suppress the route when the penalty reaches SUPPRESS_LIMIT; the
+     * caller holds tab_lock
+     *
+     * @param d destination
+     * @param old previous route, or null
+     * @param r new route, or null; receives the penalty and suppression
+     * @param now current time [ms]
+     */
+    private void dampen(char d, RouteEntry old, RouteEntry r, long now) {
+        if (r != null) {
+            r.penalty = 0;
+            r.suppressed = false;
+        }
+        if ((half_life == 0) || (d == local_name)) {
+            return;
+        }
+        int d_old = (old != null) ? old.dist : router.MAX_DISTANCE;
+        int d_new = (r != null) ? r.dist : router.MAX_DISTANCE;
+        int add = 0;
+        if ((d_old < router.MAX_DISTANCE) && (d_new != d_old)) {
+            add = (d_new >= router.MAX_DISTANCE) ? WITHDRAW_PENALTY : CHANGE_PENALTY;
+        }
+        Flap f = flaps.get(d);
+        if ((f == null) && (add > 0)) {
+            f = new Flap();
+            f.updated = now;
+            flaps.put(d, f);
+        }
+        if (f == null) {
+            return;
+        }
+        f.decay(now, half_life);
+        if (add > 0) {
+            f.penalty = Math.min(MAX_PENALTY, f.penalty + add);
+            flap_count++;
+        }
+        if (!f.suppressed && (f.penalty >= SUPPRESS_LIMIT)) {
+            f.suppressed = true;
+            suppressions++;
+            f.reuse = new Expiry(d, Expiry.REUSE);
+            f.reuse.timeout = timer.schedule(f.reuse, reuse_delay(f.penalty));
+            Log("Route to " + NodeId.toString(d) + " suppressed, penalty "
+                    + (int) f.penalty + "\n");
+        } else if (!f.suppressed && (f.penalty < 1)) {
+            flaps.remove(d);
+            return;
+        }
+        if (r != null) {
+            r.penalty = (int) f.penalty;
+            r.penalty_time = now;
+            r.penalty_half_life = half_life;
+            r.suppressed = f.suppressed;
+        }
+    }
+
+    /**
+     * Test if some route in the table still has a flap penalty, which
+     * decays
+     *
+     * @return true if some route has a penalty
+     */
+    private boolean penalties_decaying() {
+        long now = System.currentTimeMillis();
+        for (RouteEntry r : tab.values()) {
+            if (r.penalty_at(now) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Calculate the time a penalty takes to decay to REUSE_LIMIT
+     *
+     * @param penalty penalty
+     * @return the time [ms]
+     */
+    private long reuse_delay(double penalty) {
+        return (long) Math.ceil(half_life * Math.log(penalty / REUSE_LIMIT) / Math.log(2));
+    }
+
+    /**
+     * Reuse a suppressed route whose penalty decayed, and advertise it again
+     *
+     * @param e expiry
+     * @return true if the route is used again
+     */
+    private boolean expire_reuse(Expiry e) {
+        synchronized (tab_lock) {
+            Flap f = flaps.get(e.name);
+            if ((f == null) || (f.reuse != e)) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            f.decay(now, half_life);
+            if (f.penalty > REUSE_LIMIT) {
+                e.timeout = timer.schedule(e, reuse_delay(f.penalty));
+                return false;
+            }
+            f.suppressed = false;
+            f.reuse = null;
+            reuses++;
+            // Calculate it again, with the inputs ignored while suppressed
+            dirty.add(e.name);
+            RouteEntry old = tab.get(e.name);
+            if (old != null) {
+                RouteEntry r = new RouteEntry(old);
+                r.suppressed = false;
+                r.penalty = (int) f.penalty;
+                r.penalty_time = now;
+                update_digest(old, -1);
+                update_digest(r, 1);
+                HashMap<Character, RouteEntry> tab = new HashMap<>(this.tab);
+                tab.put(e.name, r);
+                this.tab = tab;
+            }
+            version++;
+            pending_changes.add(e.name);
+        }
+        Log("Route to " + NodeId.toString(e.name) + " reused\n");
+        update_routing_window();
+        return true;
+    }
+
+    /**
+     * Add or remove a route from the table digests
+     *
+     * @param rt route, or null
+     * @param sign 1 to add, -1 to remove
+     */
+    private void update_digest(RouteEntry rt, int sign) {
+        if (rt == null) {
+            return;
+        }
+        int h = sign * Entry.hash(rt.dest, rt.suppressed ? router.MAX_DISTANCE : rt.dist);
+        table_digest += h;
+        if (splitHorizon && (rt.next_hop != ' ') && (h != 0)) {
+            Integer sum = hop_digest.get(rt.next_hop);
+            int v = ((sum != null) ? sum : 0) + h;
+            if (v == 0) {
+                hop_digest.remove(rt.next_hop);
+            } else {
+                hop_digest.put(rt.next_hop, v);
+            }
+        }
+    }
+
+    /**
+     * Return a string with the routing calculation counters
      *
-     * @param n neighbour reference
-     * @param dest destination address
-     * @return true if available, false otherwise
+     * @return string with the counters
      */
-    private boolean is_path_available(neighbour n, char dest) {
-        if (!n.vec_valid()) {
-            return false;
+    public String statistics() {
+        String windows = window_statistics();
+        synchronized (tab_lock) {
+            return "Routing: runs:" + runs + " full:" + full_runs
+                    + " destinations recalculated:" + recomputed
+                    + " routes changed:" + routes_changed
+                    + " in holddown:" + holddown_timers.size()
+                    + "; ROUTE full:" + full_sent + " delta:" + delta_sent
+                    + " delta entries:" + delta_entries
+                    + " encoded:" + encoded
+                    + "; rcv unchanged:" + unchanged_rcvd + " decoded:" + decoded_rcvd
+                    + " digest errors:" + digest_errors
+                    + "; expired holddown:" + holddown_expiries
+                    + " vectors:" + vec_expiries
+                    + "; ROUTE paced:" + paced_sent + " burst max:" + burst_max
+                    + " dropped:" + route_drops + " oversize:" + route_oversize
+                    + "\n" + windows
+                    + "\nDampening (half-life " + (half_life / 1000) + "s): flaps:" + flap_count
+                    + " suppressed:" + suppressed_count()
+                    + " suppressions:" + suppressions + " reuses:" + reuses
+                    + " frozen skips:" + suppressed_skips
+                    + (dual ? "\nDUAL: active:" + active_count() + " active phases:" + active_phases
+                            + " longest:" + active_max + "ms timeouts:" + active_timeouts
+                            + " QUERY snt:" + queries_sent + " rcv:" + queries_rcvd
+                            + " REPLY snt:" + replies_sent + " rcv:" + replies_rcvd : "")
+                    + "\n" + timer.statistics();
         }
-        for (Entry Vec : n.Vec()) {
-            if (Vec.dest == dest) {
-                return Vec.dist < router.MAX_DISTANCE;
+    }
+
+    /**
+     * Count the active routes; the caller holds tab_lock
+     *
+     * @return the number of active routes
+     */
+    private int active_count() {
+        int n = 0;
+        for (DualState s : dual_state.values()) {
+            if (s.active) {
+                n++;
             }
         }
-        return false;
+        return n;
     }
 
     /**
-     * Calculate the routing table
+     * Count the suppressed routes; the caller holds tab_lock
      *
-     * @return true if the routing table was modified, false otherwise
+     * @return the number of suppressed routes
      */
-    private synchronized boolean update_routing_table() {
-        HashMap<Character, RouteEntry> baktab = tab;
-        synchronized (tab_lock) {
-            tab = new HashMap<>();
-
-            // Add local node
-            tab.put(local_name, new RouteEntry(local_name, ' ', 0));
-            
-            /*Verifies if the route to a destination through the former optimal
-            neighbour still exists, if not puts the route in Hold Down
-            */
-            for(RouteEntry rt1 : baktab.values()){
-                if(neig.locate_neig(rt1.next_hop)==null && holddown && rt1.next_hop!= ' '){                    
-                    RouteEntry r_entry = new RouteEntry(rt1);
-                    if(!r_entry.isHolddown){
-                        r_entry.isHolddown=true;
-                        r_entry.holddownCounter=0;
-                        r_entry.distHolddown = rt1.dist;
-                        r_entry.dist = router.MAX_DISTANCE;
-                    }
-                    //Checks if the MAX_holddown has been attained
-                    if(r_entry.holddownCounter<= MAX_holddown)
-                        tab.put(r_entry.dest, r_entry);
-                }
-            }
-            // DV algorithm implementation
-            for (neighbour vis : neig.values()) {
-                if (vis.Vec() != null) {                    
-                    for (Entry ent : vis.vec) {
-                        //Checks if the current entry was in holddown and adds them to
-                        //the new table if it was in holddown
-                        if(baktab.containsKey(ent.dest) && holddown){
-                            RouteEntry oldEntry = baktab.get(ent.dest);
-                            if(oldEntry.isHolddown && !tab.containsKey(ent.dest)
-                                    && oldEntry.holddownCounter<= MAX_holddown){
-                                tab.put(oldEntry.dest, new RouteEntry(oldEntry));
-                            }
-                        }
-                        /*If the new table already has an entry checks if the 
-                        new entry is a better route than the existent.
-                        If not, adds it to the table.
-                        */
-                        if (tab.containsKey(ent.dest)) {
-                            RouteEntry route_old = tab.get(ent.dest);
-                            if(route_old.isHolddown){
-                                //Verifies if a better route exists while on 
-                                //Hold Down
-                                if (ent.dist + vis.dist <= route_old.distHolddown) {
-                                    RouteEntry r_entry = new RouteEntry(ent.dest, vis.name, ent.dist + vis.dist);
-                                    tab.replace(ent.dest, r_entry);
-                                }
-                            } else{
-                                if (ent.dist + vis.dist < route_old.dist) {
-                                    RouteEntry r_entry = new RouteEntry(ent.dest, vis.name, ent.dist + vis.dist);
-                                    tab.replace(ent.dest, r_entry);
-                                }
-                            }
-                        } else if (ent.dist+vis.dist < router.MAX_DISTANCE ) {
-                            RouteEntry r_entry;
-                            r_entry = new RouteEntry(ent.dest, vis.name, ent.dist + vis.dist);
-                            tab.put(ent.dest, r_entry);
-                        } 
-                        /*If an infinite distance is received, checks if that 
-                        distance has come from the former optimal neighbour and
-                        if yes puts the route in hold down.
-                        */
-                        else if (ent.dist+vis.dist >= router.MAX_DISTANCE && holddown){
-                            for(RouteEntry rt1: baktab.values()){
-                                if((ent.dest == rt1.dest) && (vis.name == rt1.next_hop) && !rt1.isHolddown){
-                                    RouteEntry r_entry;
-                                    r_entry = new RouteEntry(ent.dest, vis.name, router.MAX_DISTANCE);
-                                    r_entry.distHolddown=rt1.dist;
-                                    r_entry.isHolddown = true;
-                                    r_entry.holddownCounter = 0;
-                                    tab.put(ent.dest, r_entry);                                    
-                                }
-                            }                            
-                        }                        
-                    }
-                }
+    private int suppressed_count() {
+        int n = 0;
+        for (Flap f : flaps.values()) {
+            if (f.suppressed) {
+                n++;
             }
         }
-        // Echo routing table
-        update_routing_window();
-        return !routing_tables_equal(tab, baktab);
+        return n;
+    }
+
+    /**
+     * Return a string with the triggered update window counters
+     *
+     * @return string with the counters
+     */
+    private synchronized String window_statistics() {
+        return "Triggered (" + coalesce + "ms window): windows:" + windows
+                + " changes:" + window_changes_total
+                + String.format(" per window avg:%.1f max:%d",
+                        windows == 0 ? 0.0 : (double) window_changes_total / windows,
+                        window_changes_max)
+                + " recalculations:" + window_recalculations + " updates sent:" + window_updates;
     }
 
     /**
-     * Display the routing table in the GUI
+     * Display the routing table in the GUI, if there is one
      */
     public void update_routing_window() {
-        Log2("update_routing_window\n");
-        // update window
-        Iterator<RouteEntry> rit = tab.values().iterator();
-        RouteEntry r;
-        for (int i = 0; i < tableObj.getRowCount(); i++) {
-            if (rit.hasNext()) {
-                r = rit.next();
-                Log2("(" + r.dest + " : " + r.next_hop + " : " + r.dist + ")");
-                tableObj.setValueAt("" + r.dest, i, 0);
-                tableObj.setValueAt("" + r.next_hop, i, 1);
-                tableObj.setValueAt("" + r.dist, i, 2);
-                tableObj.setValueAt(""+ r.isHolddown, i, 3);      
-            } else {
-                tableObj.setValueAt("", i, 0);
-                tableObj.setValueAt("", i, 1);
-                tableObj.setValueAt("", i, 2);
-                tableObj.setValueAt("", i, 3);
+        if (node == null) {
+            return;
+        }
+        HashMap<Character, RouteEntry> tab = this.tab;
+        if (Log_on(AsyncLog.TRACE)) {
+            Log2("update_routing_window\n");
+            for (RouteEntry r : tab.values()) {
+                Log2("(" + r.dest + " : " + r.next_hops_string() + " : " + r.dist + ")");
             }
         }
+        // update window
+        node.routing_changed(tab.values());
     }
 
 
@@ -528,53 +1979,84 @@ public class routing {
      *
      * @param duration duration of the first interval in (ms); then on is period
      */
-    private void run_announce_timer(int duration) {
-        //Log("routing.run_announce_timer not implemented yet\n");
-        // Place here the code to create the timer_announce object and define the
-        //    timeout event handler
-        // It should wait duration ms until triggering the first time;
-        //   then on, it should run periodically
-        timer_announce = new javax.swing.Timer(duration, new ActionListener() {
+    private synchronized void run_announce_timer(int duration) {
+        timer.cancel(timer_announce);
+        final long seq = ++announce_seq;
+        announce_triggered = false;
+        timer_announce = timer.schedule(new Runnable() {
             @Override
-            public void actionPerformed(ActionEvent evt) {                
-                update_routing_table();
-                send_local_ROUTE();
-                //lastROUTETime = new Date();
+            public void run() {
+                RouterNode n = node;
+                if (n == null) {
+                    return;     // Stopped
+                }
+                synchronized (n.main_lock) {
+                    int changes;
+                    synchronized (routing.this) {
+                        if (seq != announce_seq) {
+                            return;     // Replaced while waiting for the lock
+                        }
+                        run_announce_timer(announce_interval());
+                        changes = window_changes;
+                        window_changes = 0;
+                        window_flush = (changes > 0);
+                    }
+                    // Triggered updates carry only the changes, until
+                    // the next full update is due
+                    boolean full = !triggered
+                            || (System.currentTimeMillis() - last_full >= period * 1000L);
+                    triggered = false;
+                    update_routing_table();
+                    synchronized (routing.this) {
+                        window_flush = false;
+                    }
+                    boolean sent = send_updates(full);
+                    if (penalties_decaying()) {
+                        // Show the penalties decayed since
+                        update_routing_window();
+                    }
+                    if (changes > 0) {
+                        end_window(changes, sent);
+                    }
+                }
             }
-        });
-        timer_announce.setRepeats(true);
-        timer_announce.start();
-
+        }, Math.max(0, duration));
     }
 
     /**
-     * Launches timer responsible for sending periodic distance packets to
-     * neighbours
+     * Count a triggered update window, closed by an announce
+     *
+     * @param changes number of changes collected in the window
+     * @param sent true if the announce sent ROUTE packets
      */
-    private void start_announce_timer() {
-        run_announce_timer(period * 1000);
+    private synchronized void end_window(int changes, boolean sent) {
+        windows++;
+        window_changes_total += changes;
+        if (changes > window_changes_max) {
+            window_changes_max = changes;
+        }
+        if (sent) {
+            window_updates++;
+        }
     }
 
     /**
-     * Stops the timer responsible for sending periodic distance packets to
+     * Launches timer responsible for sending periodic distance packets to
      * neighbours
      */
-    private void stop_announce_timer() {
-        if (timer_announce != null) {
-            timer_announce.stop();
-            timer_announce = null;
-        }
+    private void start_announce_timer() {
+        run_announce_timer(announce_interval());
     }
 
     /**
-     * Restarts the timer responsible for sending periodic distance packets to
+     * Stops the timer responsible for sending periodic distance packets to
      * neighbours
      */
-    private void reset_announce_timer() {
-        if ((timer_announce != null) && timer_announce.isRunning()) {
-            stop_announce_timer();
-        }
-        start_announce_timer();
+    private synchronized void stop_announce_timer() {
+        timer.cancel(timer_announce);
+        timer_announce = null;
+        announce_seq++;
+        announce_triggered = false;
     }
 
     /**
@@ -592,42 +2074,147 @@ public class routing {
      * last sending
      */
     public void reschedule_announce_timer() {
-        //Log("routing.reschedule_announce_timer not implemented yet\n");
-        // use run_announce_timer to wait until min_interval ms before triggering the timer
-        //    lastSending stores the time of the last sending of ROUTE
-        Date nowDate = new Date();
-        long now = nowDate.getTime();
-        long timeRoute;
-        if(lastSending==null){
-            timeRoute=0;
-        }else{
-            timeRoute=lastSending.getTime();
-        }               
-        timer_announce.stop();
-        int waitTime=(int)((timeRoute+min_interval)-now);
-        timer_announce.setInitialDelay(waitTime);
-        timer_announce.start();
+        long wait = (lastSending == null) ? 0
+                : lastSending.getTime() + min_interval - System.currentTimeMillis();
+        run_announce_timer((int) Math.max(wait, coalesce));
     }
 
     /* ------------------------------------ */
-    // Holddown timer
-    private void start_holddownTimer(){
-        timer_holddown = new javax.swing.Timer(1000,new ActionListener(){
-            @Override
-            public void actionPerformed(ActionEvent evt) { 
-                //System.out.println("Timmer Holddown Triggered");
-                //update_routing_window();
-                for(RouteEntry rt : tab.values()){
-                    if(rt.isHolddown){
-                        rt.holddownCounter++;
-                    }
+    // Holddown, vector TTL and reuse timers
+    /**
+     * Expiry of the holddown of a destination, of the vector of a
+     * neighbour, or of the suppression of a route; the maps hold the
+     * current one, so a replaced expiry that was already running does
+     * nothing
+     */
+    private final class Expiry implements Runnable {
+
+        /** Kinds of expiry */
+        static final int HOLDDOWN = 0;
+        static final int VECTOR = 1;
+        static final int REUSE = 2;
+        static final int ACTIVE = 3;
+
+        /** Destination, or neighbour name */
+        final char name;
+        final int kind;
+        /** Set under tab_lock, after scheduling */
+        TimerWheel.Timeout timeout;
+
+        Expiry(char name, int kind) {
+            this.name = name;
+            this.kind = kind;
+        }
+
+        /**
+         * Apply the expiry
+         *
+         * @return true if the routing state changed
+         */
+        private boolean expire() {
+            switch (kind) {
+                case HOLDDOWN:
+                    return expire_holddown(this);
+                case VECTOR:
+                    return expire_vec(this);
+                case ACTIVE:
+                    return expire_active(this);
+                default:
+                    return expire_reuse(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            RouterNode n = node;
+            if (n == null) {
+                return;     // Stopped
+            }
+            synchronized (n.main_lock) {
+                if (!expire()) {
+                    return;
+                }
+                if (kind == ACTIVE) {
+                    // The replies do not wait for the window
+                    update_routing_table();
+                }
+                if (n.is_sendIfChanges()) {
+                    // Recalculated with the other changes of the window
+                    network_changed(false);
+                } else {
+                    // Remove the route now, not at the next announce
+                    update_routing_table();
+                }
+            }
+        }
+    }
+
+    /**
+     * End the holddown of a destination, and mark it for calculation
+     *
+     * @param e expiry
+     * @return true if it is the current expiry of the destination
+     */
+    private boolean expire_holddown(Expiry e) {
+        synchronized (tab_lock) {
+            if (holddown_timers.get(e.name) != e) {
+                return false;
+            }
+            holddown_timers.remove(e.name);
+            holddown_expired.add(e.name);
+            dirty.add(e.name);
+            holddown_expiries++;
+            return true;
+        }
+    }
+
+    /**
+     * Start the TTL expiry of the vector of a neighbour, if not running; a
+     * vector refreshed meanwhile is checked again when the expiry runs
+     *
+     * @param pt neighbour, with a vector
+     */
+    private void watch_vec(neighbour pt) {
+        synchronized (tab_lock) {
+            if (!vec_timers.containsKey(pt.name)) {
+                Expiry e = new Expiry(pt.name, Expiry.VECTOR);
+                vec_timers.put(pt.name, e);
+                e.timeout = timer.schedule(e, pt.vec_TTL * 1000);
+            }
+        }
+    }
+
+    /**
+     * Expire the vector of a neighbour, or wait again if it was refreshed
+     *
+     * @param e expiry
+     * @return true if the vector expired
+     */
+    private boolean expire_vec(Expiry e) {
+        neighbourList neig = this.neig;
+        neighbour pt = (neig != null) ? neig.locate_neig(e.name) : null;
+        synchronized (tab_lock) {
+            if (vec_timers.get(e.name) != e) {
+                return false;
+            }
+            if ((pt != null) && (pt.vec_date != null)) {
+                long left = pt.vec_date.getTime() + pt.vec_TTL * 1000
+                        - System.currentTimeMillis();
+                if (left > 0) {
+                    e.timeout = timer.schedule(e, left);
+                    return false;
                 }
-            }           
-        });
-        timer_holddown.setRepeats(true);
-        timer_holddown.start();
+            }
+            vec_timers.remove(e.name);
+            if ((pt == null) || (pt.vec == null)) {
+                return false;
+            }
+            vec_expiries++;
+        }
+        Log("Vector of neighbour " + NodeId.toString(e.name) + " expired\n");
+        return true;
     }
-    
+
     // Complete the code here ...
     /**
      * *************************************************************************
@@ -643,8 +2230,8 @@ public class routing {
         //Log("routing.next_Hop not implemented yet\n");
         // Place here the code to get the next-hop to reach dest
 
-        if (tab.containsKey(dest)) {
-            RouteEntry route = tab.get(dest);
+        RouteEntry route = tab.get(dest);
+        if (route != null) {
             return route.next_hop;
 
         } else {
@@ -654,45 +2241,54 @@ public class routing {
     }
 
     /**
-     * send a DATA packet using the routing table and the neighbor information
+     * Rebuild the forwarding table from the current routing table and
+     * neighbour list; called after either of them changes
+     */
+    public synchronized void update_fib() {
+        neighbourList neig = this.neig;
+        if (neig == null) {
+            return;
+        }
+        fib = ForwardingTable.build(local_name, self_addr, tab, neig, tx);
+    }
+
+    /**
+     * send a DATA packet using the forwarding table
      *
+     * @param sender sender address, selects the path among equal-cost routes
      * @param dest destination address
      * @param dp datagram packet object
      */
-    public void send_data_packet(char dest, DatagramPacket dp) {
-        if (win.is_local_name(dest)) {
-            // Send to local node
-            try {
-                dp.setAddress(InetAddress.getLocalHost());
-                dp.setPort(ds.getLocalPort());
-                ds.send(dp);
-                win.DATA_snt++;
-            } catch (UnknownHostException e) {
-                Log("Error sending packet to himself: " + e + "\n");
-            } catch (IOException e) {
-                Log("Error sending packet to himself: " + e + "\n");
-            }
-
-        } else { // Send to neighbour router
-            char prox = next_Hop(dest);
-            if (prox == ' ') {
-                Log("No route to destination: packet discarded\n");
-            } else {
-                // Lookup neighbour
-                neighbour pt = neig.locate_neig(prox);
-                if (pt == null) {
-                    Log("Invalid neighbour (" + prox
-                            + ") in routing table: packet discarder\n");
-                    return;
-                }
-                try {
-                    pt.send_packet(ds, dp);
-                    win.DATA_snt++;
-                } catch (IOException e) {
-                    Log("Error sending DATA packet: " + e + "\n");
-                }
-            }
+    public void send_data_packet(char sender, char dest, DatagramPacket dp) {
+        ForwardingTable.NextHop hop = fib.next_hop(dest,
+                ForwardingTable.flow_hash(sender, dest));
+        if (hop == null) {
+            Log("No route to destination: packet discarded\n");
+            return;
+        }
+        if (!tx.send(hop.queue, hop.addr,
+                ByteBuffer.wrap(dp.getData(), dp.getOffset(), dp.getLength()),
+                dp.getData()[dp.getOffset()])) {
+            Log(AsyncLog.DEBUG, "Output queue full: DATA packet discarded\n");
+        }
+    }
+
+    /**
+     * send a DATA packet using the forwarding table, without logging
+     *
+     * @param sender sender address, selects the path among equal-cost routes
+     * @param dest destination address
+     * @param buf buffer with the packet, between position and limit; it is
+     * copied, so it can be reused when the call returns
+     * @return true if queued, false if there is no route or the queue is full
+     */
+    public boolean send_data_buffer(char sender, char dest, ByteBuffer buf) {
+        ForwardingTable.NextHop hop = fib.next_hop(dest,
+                ForwardingTable.flow_hash(sender, dest));
+        if (hop == null) {
+            return false;
         }
+        return tx.send(hop.queue, hop.addr, buf, buf.get(buf.position()));
     }
 
     /**
@@ -717,7 +2313,11 @@ public class routing {
             dos.writeShort(msg.length());
             dos.writeBytes(msg);
             dos.writeByte(path.length() + 1);
-            dos.writeBytes(path + win.local_name());
+            if (NodeId.is_wide()) {
+                dos.writeChars(path + local_name);
+            } else {
+                dos.writeBytes(path + local_name);
+            }
         } catch (IOException e) {
             Log("Error encoding data packet: " + e + "\n");
             return null;
@@ -726,6 +2326,47 @@ public class routing {
         return new DatagramPacket(buffer, buffer.length);
     }
 
+    /**
+     * prepares the fragments of a message and sends them
+     *
+     * @param sender sender name
+     * @param dest destination name
+     * @param seq sequence number
+     * @param data message contents, up to router.MAX_PAYLOAD bytes
+     * @return true if all the fragments were queued
+     */
+    public boolean send_data_fragments(char sender, char dest, int seq, byte[] data) {
+        if (!NodeId.valid(dest)) {
+            Log("Invalid destination '" + NodeId.toString(dest) + "'\n");
+            return false;
+        }
+        int n = NodeId.path_bytes();
+        for (int offset = 0; offset < data.length; offset += router.MAX_FRAGMENT) {
+            int len = Math.min(router.MAX_FRAGMENT, data.length - offset);
+            ByteBuffer buf = ByteBuffer.allocate(router.FRAG_HEADER_LEN + len + 1 + n);
+            buf.put(router.PKT_DATA_FRAG);
+            buf.putChar(sender);
+            buf.putChar(dest);
+            buf.putInt(seq);
+            buf.putInt(offset);
+            buf.putInt(data.length);
+            buf.putShort((short) len);
+            buf.put(data, offset, len);
+            buf.put((byte) 1);
+            if (n == 2) {
+                buf.putChar(local_name);
+            } else {
+                buf.put((byte) local_name);
+            }
+            buf.flip();
+            if (!send_data_buffer(sender, dest, buf)) {
+                // The message cannot be reassembled: drop the rest
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * prepares a data packet; adds local_name to path and send the packet
      *
@@ -737,17 +2378,46 @@ public class routing {
      */
     public void send_data_packet(char sender, char dest, int seq, String msg,
             String path) {
-        if (!Character.isUpperCase(sender)) {
-            Log("Invalid sender '" + sender + "'\n");
+        if (!NodeId.valid(sender)) {
+            Log("Invalid sender '" + NodeId.toString(sender) + "'\n");
             return;
         }
-        if (!Character.isUpperCase(dest)) {
-            Log("Invalid destination '" + dest + "'\n");
+        if (!NodeId.valid(dest)) {
+            Log("Invalid destination '" + NodeId.toString(dest) + "'\n");
             return;
         }
         DatagramPacket dp = make_data_packet(sender, dest, seq, msg, path);
         if (dp != null) {
-            send_data_packet(dest, dp);
+            send_data_packet(sender, dest, dp);
+        }
+    }
+
+    /**
+     * Forwards a received DATA packet without decoding it: adds local_name to
+     * the path in the receive buffer and sends the same buffer to the next hop
+     *
+     * @param hop next hop
+     * @param buf buffer with the packet, whose limit is the end of the path
+     * @param len_path_pos offset of the path length byte
+     */
+    private void forward_data_packet(ForwardingTable.NextHop hop, ByteBuffer buf,
+            int len_path_pos) {
+        int end = buf.limit();
+        int n = NodeId.path_bytes();
+        if (end + n > buf.capacity()) {
+            Log("PKT_DATA: no room to extend the path: packet discarded\n");
+            return;
+        }
+        buf.limit(end + n);
+        if (n == 2) {
+            buf.putChar(end, local_name);
+        } else {
+            buf.put(end, (byte) local_name);
+        }
+        buf.put(len_path_pos, (byte) (buf.get(len_path_pos) + 1));
+        buf.position(0);
+        if (!tx.send(hop.queue, hop.addr, buf, buf.get(0))) {
+            Log(AsyncLog.DEBUG, "Output queue full: DATA packet discarded\n");
         }
     }
 
@@ -755,74 +2425,264 @@ public class routing {
      * unmarshals DATA packet e process it
      *
      * @param sender the sender of the packet
-     * @param dp datagram packet received
-     * @param ip IP of the sender
-     * @param dis data input stream
+     * @param from sender socket address
+     * @param buf buffer with the packet, positioned after the sender
      * @return true if decoding was successful
      */
-    public boolean process_DATA(char sender, DatagramPacket dp,
-            String ip, DataInputStream dis) {
+    public boolean process_DATA(char sender, InetSocketAddress from,
+            ByteBuffer buf) {
+        int len_pkt = buf.limit();
+        char prev = ' ';
         try {
-            Log("PKT_DATA");
-            if (!Character.isUpperCase(sender)) {
-                Log("Invalid sender '" + sender + "'\n");
+            if (!NodeId.valid(sender)) {
+                Log("PKT_DATA: Invalid sender '" + NodeId.toString(sender) + "'\n");
                 return false;
             }
             // Read Dest
-            char dest = dis.readChar();
+            char dest = buf.getChar();
             // Read seq
-            int seq = dis.readInt();
+            int seq = buf.getInt();
             // Read message
-            int len_msg = dis.readShort();
+            int len_msg = buf.getShort();
             if (len_msg > 255) {
-                Log(": message too long (" + len_msg + ">255)\n");
+                Log("PKT_DATA: message too long (" + len_msg + ">255)\n");
                 return false;
             }
-            byte[] sbuf1 = new byte[len_msg];
-            int n = dis.read(sbuf1, 0, len_msg);
-            if (n != len_msg) {
-                Log(": Invalid message length\n");
+            if ((len_msg < 0) || (buf.remaining() < len_msg)) {
+                Log("PKT_DATA: Invalid message length\n");
                 return false;
             }
-            String msg = new String(sbuf1, 0, n);
+            int msg_pos = buf.position();
+            buf.position(msg_pos + len_msg);
             // Read path
-            int len_path = dis.readByte();
-            if (len_path > router.MAX_PATH_LEN) {
-                Log(": path length too long (" + len_path + ">" + router.MAX_PATH_LEN
-                        + ")\n");
+            int len_path_pos = read_path(buf);
+            if (len_path_pos < 0) {
                 return false;
             }
-            byte[] sbuf2 = new byte[len_path];
-            n = dis.read(sbuf2, 0, len_path);
-            if (n != len_path) {
-                Log(": Invalid path length\n");
-                return false;
+            prev = last_hop(buf, len_path_pos);
+            if (Log_on(AsyncLog.DEBUG)) {
+                buf.position(msg_pos);
+                String msg = get_string(buf, len_msg);
+                Log(AsyncLog.DEBUG, "PKT_DATA (" + NodeId.toString(sender) + "-"
+                        + NodeId.toString(dest) + "," + seq + "):'" + msg + "':Path='"
+                        + path_string(buf, len_path_pos) + "'\n");
             }
-            String path = new String(sbuf2, 0, n);
-            Log(" (" + sender + "-" + dest + "," + seq + "):'" + msg + "':Path='" 
-                    + path + win.local_name() + "'\n");
             // Test routing table
-            if (win.is_local_name(dest)) {
+            if (dest == local_name) {
                 // Arrived at destination
-                Log("DATA packet reached destination\n");
-                return true;
-            } else {
-                char prox = next_Hop(dest);
-                if (prox == ' ') {
-                    Log("No route to destination: packet discarded\n");
-                    return false;
-                } else {
-                    // Send packet to next hop
-                    send_data_packet(sender, dest, seq, msg, path);
+                RouterNode node = this.node;
+                if ((node != null) && TrafficSink.is_generated(buf, msg_pos, len_msg)) {
+                    node.traffic_sink.received(sender, seq, buf, msg_pos, len_msg);
                     return true;
                 }
+                Log("DATA packet reached destination (" + NodeId.toString(sender) + "," + seq + ")\n");
+                return true;
+            } else {
+                return forward_data(sender, dest, buf, len_path_pos);
             }
-        } catch (IOException e) {
-            Log(" Error decoding data packet: " + e + "\n");
+        } catch (BufferUnderflowException e) {
+            Log("PKT_DATA: Error decoding data packet: " + e + "\n");
+        } finally {
+            count_DATA(router.PKT_DATA, prev, len_pkt);
+        }
+        return false;
+    }
+
+    /**
+     * unmarshals a DATA fragment and process it: reassembles it at the
+     * destination, or forwards it
+     *
+     * @param sender the sender of the packet
+     * @param from sender socket address
+     * @param buf buffer with the packet, positioned after the sender
+     * @return true if decoding was successful
+     */
+    public boolean process_DATA_FRAG(char sender, InetSocketAddress from,
+            ByteBuffer buf) {
+        int len_pkt = buf.limit();
+        char prev = ' ';
+        try {
+            if (!NodeId.valid(sender)) {
+                Log("PKT_DATA_FRAG: Invalid sender '" + NodeId.toString(sender) + "'\n");
+                return false;
+            }
+            char dest = buf.getChar();
+            int seq = buf.getInt();
+            int offset = buf.getInt();
+            int total = buf.getInt();
+            int len = buf.getShort() & 0xFFFF;
+            if ((total <= 0) || (total > router.MAX_PAYLOAD) || (len == 0)
+                    || (offset < 0) || (offset % router.MAX_FRAGMENT != 0)
+                    || (len > total - offset)
+                    || ((len != router.MAX_FRAGMENT) && (offset + len != total))) {
+                Log("PKT_DATA_FRAG: Invalid fragment (" + offset + "+" + len + "/" + total + ")\n");
+                return false;
+            }
+            if (buf.remaining() < len) {
+                Log("PKT_DATA_FRAG: Invalid fragment length\n");
+                return false;
+            }
+            int data_pos = buf.position();
+            buf.position(data_pos + len);
+            int len_path_pos = read_path(buf);
+            if (len_path_pos < 0) {
+                return false;
+            }
+            prev = last_hop(buf, len_path_pos);
+            if (Log_on(AsyncLog.DEBUG)) {
+                Log(AsyncLog.DEBUG, "PKT_DATA_FRAG (" + NodeId.toString(sender) + "-"
+                        + NodeId.toString(dest) + "," + seq + "):" + offset + "+" + len
+                        + "/" + total + ":Path='" + path_string(buf, len_path_pos) + "'\n");
+            }
+            if (dest != local_name) {
+                return forward_data(sender, dest, buf, len_path_pos);
+            }
+            buf.position(data_pos);
+            byte[] data = reassembly.add(sender, seq, offset, total, buf, len);
+            if (data == null) {
+                return true;
+            }
+            ByteBuffer msg = ByteBuffer.wrap(data);
+            RouterNode node = this.node;
+            if ((node != null) && TrafficSink.is_generated(msg, 0, data.length)) {
+                node.traffic_sink.received(sender, seq, msg, 0, data.length);
+            } else {
+                Log("DATA message reached destination (" + NodeId.toString(sender) + ","
+                        + seq + "," + data.length + " bytes)\n");
+            }
+            return true;
+        } catch (BufferUnderflowException e) {
+            Log("PKT_DATA_FRAG: Error decoding data packet: " + e + "\n");
+        } finally {
+            count_DATA(router.PKT_DATA_FRAG, prev, len_pkt);
         }
         return false;
     }
 
+    /**
+     * Read and validate the path at the end of a DATA packet, and set the
+     * buffer limit to its end
+     *
+     * @param buf buffer positioned at the path length byte
+     * @return the offset of the path length byte, or -1 if invalid
+     */
+    private int read_path(ByteBuffer buf) {
+        int len_path_pos = buf.position();
+        int len_path = buf.get();
+        if (len_path > router.MAX_PATH_LEN) {
+            Log("PKT_DATA: path length too long (" + len_path + ">" + router.MAX_PATH_LEN
+                    + ")\n");
+            return -1;
+        }
+        int path_bytes = len_path * NodeId.path_bytes();
+        if ((len_path < 0) || (buf.remaining() < path_bytes)) {
+            Log("PKT_DATA: Invalid path length\n");
+            return -1;
+        }
+        // Ignore trailing bytes, so the path ends the packet
+        buf.limit(buf.position() + path_bytes);
+        return len_path_pos;
+    }
+
+    /**
+     * Get the previous hop of a DATA packet, the last name in its validated
+     * path
+     *
+     * @param buf buffer with the packet, whose limit is the end of the path
+     * @param len_path_pos offset of the path length byte
+     * @return the previous hop name, or ' ' if the path is empty
+     */
+    private static char last_hop(ByteBuffer buf, int len_path_pos) {
+        if (buf.get(len_path_pos) == 0) {
+            return ' ';
+        }
+        if (NodeId.is_wide()) {
+            return buf.getChar(buf.limit() - 2);
+        }
+        return (char) (buf.get(buf.limit() - 1) & 0xFF);
+    }
+
+    /**
+     * Count a received DATA packet, for its previous hop
+     *
+     * @param code packet code
+     * @param prev previous hop, or ' ' if unknown
+     * @param len packet length
+     */
+    private void count_DATA(byte code, char prev, int len) {
+        RouterNode node = this.node;
+        if (node != null) {
+            node.stats.received(code, prev, len);
+        }
+    }
+
+    /**
+     * Format the path of a DATA packet for the log, with the local name
+     *
+     * @param buf buffer with the packet, whose limit is the end of the path
+     * @param len_path_pos offset of the path length byte
+     * @return the path
+     */
+    private String path_string(ByteBuffer buf, int len_path_pos) {
+        buf.position(len_path_pos + 1);
+        return get_path(buf, buf.get(len_path_pos)) + NodeId.toString(local_name);
+    }
+
+    /**
+     * Forward a received DATA packet to the next hop towards its destination
+     *
+     * @param sender sender name
+     * @param dest destination name
+     * @param buf buffer with the packet, whose limit is the end of the path
+     * @param len_path_pos offset of the path length byte
+     * @return true if forwarded, false if there is no route
+     */
+    private boolean forward_data(char sender, char dest, ByteBuffer buf, int len_path_pos) {
+        ForwardingTable.NextHop hop = fib.next_hop(dest,
+                ForwardingTable.flow_hash(sender, dest));
+        if (hop == null) {
+            Log("No route to destination: packet discarded\n");
+            return false;
+        }
+        // Send packet to next hop
+        forward_data_packet(hop, buf, len_path_pos);
+        return true;
+    }
+
+    /**
+     * Decode the path of a DATA packet, in the current address format
+     *
+     * @param buf buffer positioned at the first name
+     * @param len number of names
+     * @return the path, with the 16 bit addresses separated by '-'
+     */
+    private static String get_path(ByteBuffer buf, int len) {
+        if (!NodeId.is_wide()) {
+            return get_string(buf, len);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < len; i++) {
+            sb.append(NodeId.toString(buf.getChar())).append('-');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decode a string of 8 bit characters (written with writeBytes) directly
+     * from the packet buffer
+     *
+     * @param buf buffer positioned at the first character
+     * @param len number of characters
+     * @return the decoded string
+     */
+    private static String get_string(ByteBuffer buf, int len) {
+        char[] str = new char[len];
+        for (int i = 0; i < len; i++) {
+            str[i] = (char) (buf.get() & 0xFF);
+        }
+        return new String(str);
+    }
+
     /**
      * *************************************************************************
      * Log functions
@@ -833,18 +2693,46 @@ public class routing {
      * @param s log string
      */
     private void Log(String s) {
-        win.Log(s);
+        RouterNode node = this.node;
+        if (node != null) {
+            node.Log(s);
+        }
+    }
+
+    /**
+     * Output the string to the log, if the level is enabled
+     *
+     * @param level log level
+     * @param s log string
+     */
+    private void Log(int level, String s) {
+        RouterNode node = this.node;
+        if (node != null) {
+            node.Log(level, s);
+        }
+    }
+
+    /**
+     * Test if a log level is enabled; test it before formatting messages
+     *
+     * @param level log level
+     * @return true if enabled
+     */
+    private boolean Log_on(int level) {
+        RouterNode node = this.node;
+        return (node != null) && node.Log_on(level);
     }
 
     /**
-     * Auxiliary log function - when more detail is required remove the comments
+     * Auxiliary log function - detailed debug, written at TRACE level
      *
      * @param s log string
      */
     public final void Log2(String s) {
-        System.err.println(s);
-        //if (win != null)
-        //    win.Log(s);  // For detailed debug purposes
+        RouterNode node = this.node;
+        if (node != null) {
+            node.Log(AsyncLog.TRACE, s.endsWith("\n") ? s : s + "\n");
+        }
     }
 
     /**